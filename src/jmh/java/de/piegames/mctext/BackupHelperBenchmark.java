@@ -0,0 +1,70 @@
+package de.piegames.mctext;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks backing up and restoring the whole test world, including all disk I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackupHelperBenchmark {
+
+	/** If set, convert to uncompressed nbt instead of json */
+	@Param({ "false", "true" })
+	public boolean	decompress;
+
+	@Param({ "1", "4" })
+	public int		threads;
+
+	BackupHelper	helper;
+	Path			world, backup, restore;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, URISyntaxException {
+		helper = new BackupHelper(false, true, false, 1, decompress, true, true, false, false);
+		helper.threads = threads;
+		world = ConverterBenchmark.resource("");
+		backup = Files.createTempDirectory("mctext");
+		restore = Files.createTempDirectory("mctext");
+		helper.backupWorld(world, backup);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(backup.toFile());
+		FileUtils.deleteDirectory(restore.toFile());
+	}
+
+	@Benchmark
+	public void backupWorld() throws IOException {
+		helper.backupWorld(world, backup);
+	}
+
+	@Benchmark
+	public void restoreWorld() throws IOException {
+		helper.restoreWorld(backup, restore);
+	}
+}
@@ -0,0 +1,170 @@
+package de.piegames.mctext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flowpowered.nbt.CompoundTag;
+import com.flowpowered.nbt.stream.NBTInputStream;
+
+/**
+ * Benchmarks for the conversion of single region and nbt files in memory, using the files of the test world.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+	@Param({ "r0.mca", "r2.mca", "r4.mca" })
+	public String		region;
+
+	@Param({ "false", "true" })
+	public boolean		keepUnused;
+
+	Converter			converter;
+	Path				regionPath, levelPath, tmp;
+	RegionFile			regionFile;
+	CompoundTag			regionTag, levelTag;
+	String				regionJson, levelJson;
+	byte[]				levelNBT;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, URISyntaxException {
+		converter = new Converter(false, keepUnused);
+		regionPath = resource(region);
+		levelPath = resource("level.dat");
+		tmp = Files.createTempFile("mctext", ".mca");
+
+		regionFile = new RegionFile(regionPath);
+		regionTag = converter.writeNBT(regionFile);
+		StringWriter writer = new StringWriter();
+		converter.writeJson(regionFile, writer);
+		regionJson = writer.toString();
+
+		try (NBTInputStream in = new NBTInputStream(Files.newInputStream(levelPath))) {
+			levelTag = (CompoundTag) in.readTag();
+		}
+		writer = new StringWriter();
+		converter.writeJson(levelTag, writer);
+		levelJson = writer.toString();
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(levelPath))) {
+			levelNBT = IOUtils.toByteArray(in);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(tmp);
+	}
+
+	static Path resource(String name) throws URISyntaxException {
+		return Paths.get(ConverterBenchmark.class.getResource("/testworld/" + name).toURI());
+	}
+
+	@Benchmark
+	public RegionFile loadRegion() throws IOException {
+		return new RegionFile(regionPath);
+	}
+
+	@Benchmark
+	public RegionFile mapRegion() throws IOException {
+		return RegionFile.map(regionPath);
+	}
+
+	@Benchmark
+	public void writeRegion() throws IOException {
+		regionFile.write(tmp);
+	}
+
+	@Benchmark
+	public CompoundTag regionToNBT() throws IOException {
+		return converter.writeNBT(regionFile);
+	}
+
+	@Benchmark
+	public RegionFile regionFromNBT() throws IOException {
+		return converter.readNBT(regionTag);
+	}
+
+	@Benchmark
+	public void regionToJson() throws IOException {
+		converter.writeJson(regionFile, NullWriter.INSTANCE);
+	}
+
+	@Benchmark
+	public RegionFile regionFromJson() throws IOException {
+		return converter.readNBT(converter.readJson(new StringReader(regionJson)));
+	}
+
+	@Benchmark
+	public RegionFile regionTranscodeJson() throws IOException {
+		return converter.readRegion(new StringReader(regionJson));
+	}
+
+	@Benchmark
+	public void levelToJson() throws IOException {
+		converter.writeJson(levelTag, NullWriter.INSTANCE);
+	}
+
+	@Benchmark
+	public void levelTranscodeJson() throws IOException {
+		converter.writeJson(new ByteArrayInputStream(levelNBT), NullWriter.INSTANCE);
+	}
+
+	@Benchmark
+	public CompoundTag levelFromJson() throws IOException {
+		return converter.readJson(new StringReader(levelJson));
+	}
+
+	/** Discards everything, so that only the conversion itself gets measured */
+	static class NullWriter extends Writer {
+		static final NullWriter INSTANCE = new NullWriter();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+		}
+
+		@Override
+		public void write(int c) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
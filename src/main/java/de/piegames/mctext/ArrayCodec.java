@@ -0,0 +1,301 @@
+package de.piegames.mctext;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encodes primitive arrays as big endian Base64 strings and back, with the same output as {@link java.util.Base64}. When encoding, the intermediate
+ * bytes and characters are kept in thread local scratch buffers that get reused. Buffers above {@link #SCRATCH_LIMIT} are not kept, so one huge array
+ * does not pin its size on every thread. Decoding goes straight from the string into the result array.
+ * <p>
+ * Int and long arrays can alternatively be written as json array of fixed width hex strings, one per element. With pretty printing, every element
+ * is on its own line, so changing one element only changes one line. Readers detect this encoding by the array token.
+ */
+final class ArrayCodec {
+
+	private static final char[]					ALPHABET	= "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final char[]					HEX			= "0123456789abcdef".toCharArray();
+	private static final int[]					VALUES		= new int[128];
+
+	static {
+		Arrays.fill(VALUES, -1);
+		for (int i = 0; i < ALPHABET.length; i++)
+			VALUES[ALPHABET[i]] = i;
+	}
+
+	private static final ThreadLocal<Scratch>	SCRATCH		= ThreadLocal.withInitial(Scratch::new);
+
+	/** The largest scratch buffer that is kept for reuse. Larger arrays get a buffer of their own that is dropped afterwards. */
+	static final int	SCRATCH_LIMIT	= 1 << 20;
+
+	private ArrayCodec() {
+	}
+
+	static void write(JsonWriter out, byte[] data) throws IOException {
+		write(out, data, data.length);
+	}
+
+	static void write(JsonWriter out, short[] data) throws IOException {
+		byte[] bytes = SCRATCH.get().bytes(data.length * 2);
+		for (int i = 0, j = 0; i < data.length; i++) {
+			short v = data[i];
+			bytes[j++] = (byte) (v >>> 8);
+			bytes[j++] = (byte) v;
+		}
+		write(out, bytes, data.length * 2);
+	}
+
+	static void write(JsonWriter out, int[] data) throws IOException {
+		byte[] bytes = SCRATCH.get().bytes(data.length * 4);
+		for (int i = 0, j = 0; i < data.length; i++) {
+			int v = data[i];
+			bytes[j++] = (byte) (v >>> 24);
+			bytes[j++] = (byte) (v >>> 16);
+			bytes[j++] = (byte) (v >>> 8);
+			bytes[j++] = (byte) v;
+		}
+		write(out, bytes, data.length * 4);
+	}
+
+	static void write(JsonWriter out, long[] data) throws IOException {
+		byte[] bytes = SCRATCH.get().bytes(data.length * 8);
+		for (int i = 0, j = 0; i < data.length; i++) {
+			long v = data[i];
+			for (int shift = 56; shift >= 0; shift -= 8)
+				bytes[j++] = (byte) (v >>> shift);
+		}
+		write(out, bytes, data.length * 8);
+	}
+
+	/** Reads {@code length} bytes from the stream and writes them as Base64 string value. */
+	static void write(JsonWriter out, DataInput in, int length) throws IOException {
+		byte[] bytes = SCRATCH.get().bytes(length);
+		in.readFully(bytes, 0, length);
+		write(out, bytes, length);
+	}
+
+	/** Writes the first {@code length} bytes as Base64 string value. */
+	private static void write(JsonWriter out, byte[] bytes, int length) throws IOException {
+		char[] chars = SCRATCH.get().chars((length + 2) / 3 * 4);
+		value(out, chars, encode(bytes, length, chars));
+	}
+
+	private static void value(JsonWriter out, char[] chars, int count) throws IOException {
+		if (out instanceof StreamingJsonWriter)
+			((StreamingJsonWriter) out).value(chars, count);
+		else
+			out.value(new String(chars, 0, count));
+	}
+
+	static void writeHex(JsonWriter out, int[] data) throws IOException {
+		char[] chars = SCRATCH.get().chars(8);
+		out.beginArray();
+		for (int v : data)
+			value(out, chars, hex(v, 8, chars));
+		out.endArray();
+	}
+
+	static void writeHex(JsonWriter out, long[] data) throws IOException {
+		char[] chars = SCRATCH.get().chars(16);
+		out.beginArray();
+		for (long v : data)
+			value(out, chars, hex(v, 16, chars));
+		out.endArray();
+	}
+
+	/** Reads {@code count} big endian words of {@code wordSize} bytes (4 or 8) from the stream and writes them as hex array. */
+	static void writeHex(JsonWriter out, DataInput in, int count, int wordSize) throws IOException {
+		char[] chars = SCRATCH.get().chars(16);
+		out.beginArray();
+		for (int i = 0; i < count; i++)
+			value(out, chars, wordSize == 8 ? hex(in.readLong(), 16, chars) : hex(in.readInt(), 8, chars));
+		out.endArray();
+	}
+
+	/** Writes the lowest {@code digits} hex digits of the value, zero padded */
+	private static int hex(long value, int digits, char[] chars) {
+		for (int i = digits - 1; i >= 0; i--, value >>>= 4)
+			chars[i] = HEX[(int) value & 0xF];
+		return digits;
+	}
+
+	static int[] readHexInts(JsonReader in) throws IOException {
+		int[] array = new int[64];
+		int length = 0;
+		in.beginArray();
+		for (; in.hasNext(); length++) {
+			if (length == array.length)
+				array = Arrays.copyOf(array, length * 2);
+			array[length] = Integer.parseUnsignedInt(in.nextString(), 16);
+		}
+		in.endArray();
+		return Arrays.copyOf(array, length);
+	}
+
+	static long[] readHexLongs(JsonReader in) throws IOException {
+		long[] array = new long[64];
+		int length = 0;
+		in.beginArray();
+		for (; in.hasNext(); length++) {
+			if (length == array.length)
+				array = Arrays.copyOf(array, length * 2);
+			array[length] = Long.parseUnsignedLong(in.nextString(), 16);
+		}
+		in.endArray();
+		return Arrays.copyOf(array, length);
+	}
+
+	static int encode(byte[] bytes, int length, char[] chars) {
+		int j = 0, i = 0;
+		for (int end = length - length % 3; i < end; i += 3) {
+			int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+			chars[j++] = ALPHABET[bits >>> 18];
+			chars[j++] = ALPHABET[bits >>> 12 & 0x3F];
+			chars[j++] = ALPHABET[bits >>> 6 & 0x3F];
+			chars[j++] = ALPHABET[bits & 0x3F];
+		}
+		if (i < length) {
+			int bits = (bytes[i] & 0xFF) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+			chars[j++] = ALPHABET[bits >>> 18];
+			chars[j++] = ALPHABET[bits >>> 12 & 0x3F];
+			chars[j++] = i + 1 < length ? ALPHABET[bits >>> 6 & 0x3F] : '=';
+			chars[j++] = '=';
+		}
+		return j;
+	}
+
+	static byte[] readBytes(String data) {
+		byte[] bytes = new byte[decodedLength(data)];
+		decode(data, bytes);
+		return bytes;
+	}
+
+	static short[] readShorts(String data) {
+		short[] array = new short[decodedLength(data) / 2];
+		Decoder decoder = new Decoder(data);
+		for (int i = 0; i < array.length; i++)
+			array[i] = (short) (decoder.next() << 8 | decoder.next());
+		return array;
+	}
+
+	static int[] readInts(String data) {
+		int[] array = new int[decodedLength(data) / 4];
+		Decoder decoder = new Decoder(data);
+		for (int i = 0; i < array.length; i++)
+			array[i] = decoder.next() << 24 | decoder.next() << 16 | decoder.next() << 8 | decoder.next();
+		return array;
+	}
+
+	static long[] readLongs(String data) {
+		long[] array = new long[decodedLength(data) / 8];
+		Decoder decoder = new Decoder(data);
+		for (int i = 0; i < array.length; i++) {
+			long v = 0;
+			for (int k = 0; k < 8; k++)
+				v = v << 8 | decoder.next();
+			array[i] = v;
+		}
+		return array;
+	}
+
+	/** The number of bytes encoded in the string. Like {@link java.util.Base64.Decoder}, the padding is optional. */
+	static int decodedLength(String data) {
+		int length = data.length();
+		if (length > 0 && data.charAt(length - 1) == '=')
+			length--;
+		if (length > 0 && data.charAt(length - 1) == '=')
+			length--;
+		if (length % 4 == 1)
+			throw new IllegalArgumentException("Invalid Base64 length: " + data.length());
+		return length / 4 * 3 + Math.max(length % 4 - 1, 0);
+	}
+
+	/** Decodes the string into the beginning of the array, which must be at least {@link #decodedLength(String)} long. */
+	static void decode(String data, byte[] bytes) {
+		decode(data, bytes, 0);
+	}
+
+	/** Decodes the string into the array, starting at the given offset */
+	static void decode(String data, byte[] bytes, int offset) {
+		int length = offset + decodedLength(data);
+		Decoder decoder = new Decoder(data);
+		for (int j = offset; j < length; j++)
+			bytes[j] = (byte) decoder.next();
+	}
+
+	/** Reads the bytes of a Base64 string one after another, without checking for the end. */
+	private static class Decoder {
+		final String	data;
+		int				index, bits, count;
+
+		Decoder(String data) {
+			this.data = data;
+		}
+
+		/** The next byte, as unsigned value */
+		int next() {
+			while (count < 8) {
+				char c = data.charAt(index++);
+				int value = c < 128 ? VALUES[c] : -1;
+				if (value < 0)
+					throw new IllegalArgumentException("Illegal Base64 character: " + c);
+				bits = bits << 6 | value;
+				count += 6;
+			}
+			count -= 8;
+			return bits >>> count & 0xFF;
+		}
+	}
+
+	private static class Scratch {
+		byte[]	bytes	= new byte[8192];
+		char[]	chars	= new char[8192 / 3 * 4 + 4];
+
+		byte[] bytes(int length) {
+			if (length > SCRATCH_LIMIT)
+				return new byte[length];
+			if (bytes.length < length)
+				bytes = new byte[Math.min(Math.max(length, bytes.length * 2), SCRATCH_LIMIT)];
+			return bytes;
+		}
+
+		char[] chars(int length) {
+			if (length > SCRATCH_LIMIT)
+				return new char[length];
+			if (chars.length < length)
+				chars = new char[Math.min(Math.max(length, chars.length * 2), SCRATCH_LIMIT)];
+			return chars;
+		}
+	}
+
+	/**
+	 * A json writer that can write the encoded characters directly to the underlying writer instead of creating a string for each array. The
+	 * characters must not need escaping.
+	 * <p>
+	 * This relies on how gson's {@link JsonWriter#jsonValue(String)} works: it writes the separator, indentation and the given text to the
+	 * underlying writer right away, without buffering, and no other state than that a value has been written. So passing the opening quote
+	 * leaves the writer positioned inside of a string value, and the rest of the string can be written to the underlying writer. This is
+	 * pinned down by {@code ConverterTest.testStreamingJsonWriter}, which needs to be checked when updating gson.
+	 */
+	static class StreamingJsonWriter extends JsonWriter {
+
+		private final Writer out;
+
+		public StreamingJsonWriter(Writer out) {
+			super(out);
+			this.out = out;
+		}
+
+		void value(char[] chars, int length) throws IOException {
+			/* Let the json writer handle the separators and indentation, then bypass it for the content */
+			jsonValue("\"");
+			out.write(chars, 0, length);
+			out.write('"');
+		}
+	}
+}
@@ -2,34 +2,102 @@ package de.piegames.mctext;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.flowpowered.nbt.ByteArrayTag;
+import com.flowpowered.nbt.ByteTag;
+import com.flowpowered.nbt.CompoundMap;
 import com.flowpowered.nbt.CompoundTag;
+import com.flowpowered.nbt.IntArrayTag;
+import com.flowpowered.nbt.IntTag;
+import com.flowpowered.nbt.StringTag;
+import com.flowpowered.nbt.Tag;
+import com.flowpowered.nbt.TagType;
 import com.flowpowered.nbt.stream.NBTInputStream;
 import com.flowpowered.nbt.stream.NBTOutputStream;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import de.piegames.mctext.Metrics.Phase;
 
 public class BackupHelper {
 	public static final Logger		log		= LogManager.getLogger(BackupHelper.class);
 
 	public static final PathMatcher	nbt		= FileSystems.getDefault().getPathMatcher("glob:**.{dat,dat_old,dat_new,nbt}");
 	public static final PathMatcher	anvil	= FileSystems.getDefault().getPathMatcher("glob:**.{mca,mcr}");
+	/** The name of the header file of a split region, without extension */
+	static final String				HEADER	= "header";
+	/** The name of the tag that marks the header of a region backed up into a {@link #chunkStore} */
+	static final String				STORE_MARKER	= "chunkStore";
+
+	/** The size of the buffers used to read and write json files. Big region files produce a lot of text, so this is larger than the default */
+	static final int				BUFFER_SIZE	= 1 << 16;
+	/** The maximum number of discovered files that wait for a worker. The walk pauses when there are more. */
+	static final int				QUEUE_SIZE	= 1024;
+
+	/* How much heap a conversion takes per byte on disk, see memoryCost. These are estimates from converting a few big worlds. */
+	/** Streaming json conversions, which only keep one chunk at a time plus the buffers */
+	static final double				STREAMING_EXPANSION				= 1;
+	/** Region files with parallel chunks, which keep all chunks of the region decompressed */
+	static final double				PARALLEL_EXPANSION				= 6;
+	/** Building the tag tree of compressed nbt or region files */
+	static final double				TREE_EXPANSION					= 12;
+	/** Building the tag tree of uncompressed nbt or split regions */
+	static final double				UNCOMPRESSED_TREE_EXPANSION		= 4;
+	/** The assumed size of a region file restored from a {@link #chunkStore}, whose own size can't be known in advance */
+	static final long				STORE_REGION_SIZE				= 4 << 20;
 
 	protected Converter				converter;
 
@@ -41,6 +109,45 @@ public class BackupHelper {
 	public final boolean			failFast;
 	public final boolean			delete;
 	public final boolean			checkTimestamps;
+	/** The number of files that will be converted in parallel by {@link #backupWorld(Path, Path)} and {@link #restoreWorld(Path, Path)} */
+	public int						threads	= Runtime.getRuntime().availableProcessors();
+	/**
+	 * The amount of heap in bytes that the files being converted in parallel may take together, estimated from their size and format. Files that
+	 * would need more than that are converted alone. Defaults to half of the maximum heap size.
+	 */
+	public long						maxMemory	= Runtime.getRuntime().maxMemory() / 2;
+	/**
+	 * When backing up region files to json, keep an index of the chunks in the output, so that unchanged chunks can be copied from the existing
+	 * output instead of being converted again. See {@link ChunkIndex}.
+	 */
+	public boolean					incremental;
+	/**
+	 * Back up every region file as a folder containing one file per chunk and a small header file instead of a single big file. This keeps
+	 * git's work proportional to the chunks that actually changed. Restoring detects this layout automatically.
+	 */
+	public boolean					splitRegions;
+	/**
+	 * If set, region files are backed up into this {@link ChunkStore} and the destination only contains a small file per region with its header and
+	 * the hashes of its chunks. Chunks that are already in the store are not converted again. Must also be set when restoring such a backup.
+	 */
+	public Path						chunkStore;
+	/**
+	 * When restoring, pack the chunks of every region file without gaps instead of putting them at their original positions. This makes the files
+	 * smaller, but drops all unused data. See {@link RegionFile#write(Path, boolean)}.
+	 */
+	public boolean					compact;
+	/**
+	 * The files and folders in the destination that have been written during the last {@link #backupWorld(Path, Path)} or
+	 * {@link #restoreWorld(Path, Path)}. Together with {@link #deletedFiles}, this tells which parts of the destination changed without looking at it.
+	 * The {@link ChunkIndex} files are left out of both, they are only a cache and don't belong into the history of the backup.
+	 */
+	public final Set<Path>			writtenFiles	= ConcurrentHashMap.newKeySet();
+	/** The files and folders in the destination that have been deleted during the last conversion. Deleted folders are not listed file by file. */
+	public final Set<Path>			deletedFiles	= ConcurrentHashMap.newKeySet();
+	/** Time, sizes and progress of the last {@link #backupWorld(Path, Path)} or {@link #restoreWorld(Path, Path)} */
+	public final Metrics			metrics			= new Metrics();
+	/** Log the progress every that many seconds while converting a world. 0 disables it. */
+	public int						progressInterval;
 
 	public BackupHelper(boolean prettyPrinting, boolean keepUnusedData, boolean dryRun, int nbtCompression, boolean decompress, boolean overwriteExisting,
 			boolean failFast,
@@ -70,12 +177,8 @@ public class BackupHelper {
 			backupAnvil(source, destination);
 		} else {
 			log.debug(source + " does not seem to be a convertible file and will be copied");
-			if (!dryRun) {
-				if (overwriteExisting)
-					Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-				else
-					Files.copy(source, destination);
-			}
+			if (!dryRun)
+				copy(source, destination);
 		}
 	}
 
@@ -86,16 +189,15 @@ public class BackupHelper {
 		if (dryRun)
 			return;
 		if (decompress)
-			try (NBTInputStream s = new NBTInputStream(new BufferedInputStream(Files.newInputStream(source)), nbtCompression);
-					NBTOutputStream t = new NBTOutputStream(new BufferedOutputStream(Files.newOutputStream(destination)), NBTInputStream.NO_COMPRESSION)) {
+			try (NBTInputStream s = new NBTInputStream(new BufferedInputStream(newInputStream(source)), nbtCompression);
+					NBTOutputStream t = new NBTOutputStream(new BufferedOutputStream(newOutputStream(destination)), NBTInputStream.NO_COMPRESSION)) {
 				t.writeTag(s.readTag());
 				t.flush();
 			}
 		else
-			try (NBTInputStream s = new NBTInputStream(new BufferedInputStream(Files.newInputStream(source)), nbtCompression);
-					Writer writer = Files.newBufferedWriter(destination)) {
-				writer.write(converter.gson.toJson(s.readTag()));
-				writer.flush();
+			try (InputStream s = Compression.decompress(new BufferedInputStream(newInputStream(source)), nbtCompression);
+					Writer writer = newWriter(newOutputStream(destination))) {
+				converter.writeJson(s, writer);
 			}
 	}
 
@@ -105,45 +207,177 @@ public class BackupHelper {
 			throw new FileAlreadyExistsException(destination.toString(), null, "Run with --overwrite-existing or --delete-destination");
 		if (dryRun)
 			return;
-		if (decompress)
-			try (NBTOutputStream t = new NBTOutputStream(new BufferedOutputStream(Files.newOutputStream(destination)), NBTInputStream.NO_COMPRESSION)) {
-				t.writeTag(converter.writeNBT(new RegionFile(source)));
+		if (chunkStore != null)
+			backupAnvilStore(source, destination);
+		else if (splitRegions)
+			backupAnvilSplit(source, destination);
+		else if (decompress)
+			try (NBTOutputStream t = new NBTOutputStream(new BufferedOutputStream(newOutputStream(destination)), NBTInputStream.NO_COMPRESSION)) {
+				t.writeTag(converter.writeNBT(mapRegion(source)));
 				t.flush();
 			}
+		else if (incremental)
+			backupAnvilIncremental(source, destination);
 		else
-			try (Writer writer = Files.newBufferedWriter(destination)) {
-				writer.write(converter.gson.toJson(new RegionFile(source)));
-				writer.flush();
+			try (Writer writer = newWriter(newOutputStream(destination))) {
+				converter.writeJson(mapRegion(source), writer);
+			}
+	}
+
+	/**
+	 * Backs up a region file into a folder, with one file for each chunk named after its coordinates ({@code c.<x>.<z>}) and a header file containing
+	 * the location table and the unused data, if it is kept. The timestamps are part of the chunk files.
+	 */
+	void backupAnvilSplit(Path source, Path destination) throws IOException {
+		RegionFile file = mapRegion(source);
+		if (Files.isRegularFile(destination)) {
+			Files.delete(destination);
+			deletedFiles.add(destination);
+		}
+		Files.createDirectories(destination);
+
+		Set<Path> written = ConcurrentHashMap.newKeySet();
+		converter.forEach(1024, i -> {
+			if (file.chunks[i] != null) {
+				Path chunkFile = destination.resolve("c." + (i & 31) + "." + (i >> 5) + extension());
+				if (decompress)
+					writeTag(converter.writeChunk(file, i), chunkFile);
+				else
+					try (Writer writer = newWriter(newOutputStream(chunkFile))) {
+						converter.writeChunkJson(file, i, writer);
+					}
+				written.add(chunkFile);
+			}
+		});
+
+		CompoundMap header = new CompoundMap();
+		int[] locations = new int[1024];
+		for (int i = 0; i < 1024; i++)
+			locations[i] = file.locations2.get(i);
+		header.put(new IntArrayTag("locations", locations));
+		if (converter.keepUnusedData && file.unused != null) {
+			CompoundMap unused = new CompoundMap();
+			for (Entry<Integer, ByteBuffer> e : file.unused.entrySet())
+				unused.put(new ByteArrayTag(String.valueOf(e.getKey()), Converter.sectorData(e.getValue())));
+			header.put(new CompoundTag("unused", unused));
+		}
+		Path headerFile = destination.resolve(HEADER + extension());
+		writeTag(new CompoundTag("", header), headerFile);
+		written.add(headerFile);
+
+		/* Remove chunks that don't exist anymore */
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(destination)) {
+			for (Path old : stream)
+				if (!written.contains(old)) {
+					Files.delete(old);
+					deletedFiles.add(old);
+				}
+		}
+	}
+
+	/**
+	 * Backs up a region file into the {@link #chunkStore}. Every chunk that is not in the store yet gets converted into it, the destination gets the
+	 * location table, timestamps and compression types of the region together with the hashes of its chunks. Unused data is kept in the destination,
+	 * since it is different for nearly every chunk.
+	 */
+	void backupAnvilStore(Path source, Path destination) throws IOException {
+		RegionFile file = mapRegion(source);
+		ChunkStore store = new ChunkStore(chunkStore);
+		String options = outputOptions();
+		String[] hashes = new String[1024];
+		converter.forEach(1024, i -> {
+			if (file.chunks[i] == null)
+				return;
+			hashes[i] = ChunkStore.hash(file, i, options);
+			createFile(store.location(hashes[i], extension()), out -> {
+				try (InputStream in = file.openChunk(i)) {
+					if (decompress)
+						IOUtils.copy(in, out);
+					else {
+						Writer writer = newWriter(out);
+						converter.writeJson(in, writer);
+					}
+				}
+			});
+		});
+
+		CompoundMap header = new CompoundMap();
+		/* Must come first, see isStoreRegion */
+		header.put(new ByteTag(STORE_MARKER, (byte) 1));
+		int[] locations = new int[1024];
+		int[] timestamps = new int[1024];
+		byte[] compressions = new byte[1024];
+		CompoundMap chunks = new CompoundMap();
+		CompoundMap chunkUnused = new CompoundMap();
+		for (int i = 0; i < 1024; i++) {
+			locations[i] = file.locations2.get(i);
+			timestamps[i] = file.timestamps2.get(i);
+			if (file.chunks[i] != null) {
+				compressions[i] = file.chunks[i].get(4);
+				chunks.put(new StringTag(String.valueOf(i), hashes[i]));
+				if (converter.keepUnusedData)
+					chunkUnused.put(new ByteArrayTag(String.valueOf(i), Converter.unusedData(file, i)));
 			}
+		}
+		header.put(new IntArrayTag("locations", locations));
+		header.put(new IntArrayTag("timestamps", timestamps));
+		header.put(new ByteArrayTag("compressions", compressions));
+		header.put(new CompoundTag("chunks", chunks));
+		if (converter.keepUnusedData) {
+			header.put(new CompoundTag("chunkUnused", chunkUnused));
+			if (file.unused != null) {
+				CompoundMap unused = new CompoundMap();
+				for (Entry<Integer, ByteBuffer> e : file.unused.entrySet())
+					unused.put(new ByteArrayTag(String.valueOf(e.getKey()), Converter.sectorData(e.getValue())));
+				header.put(new CompoundTag("unused", unused));
+			}
+		}
+		writeTag(new CompoundTag("", header), destination);
+	}
+
+	void backupAnvilIncremental(Path source, Path destination) throws IOException {
+		String options = outputOptions();
+		ChunkIndex previous = ChunkIndex.load(destination, options);
+		/* The old output is still needed while writing the new one */
+		Path tmp = destination.resolveSibling(destination.getFileName() + ".tmp");
+		ChunkIndex index;
+		try (Writer writer = newWriter(tmp); Reader reader = previous == null ? null : newReader(destination)) {
+			index = converter.writeJson(mapRegion(source), writer, previous, reader);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Files.move(tmp, destination, StandardCopyOption.REPLACE_EXISTING);
+		writtenFiles.add(destination);
+		if (index != null) {
+			index.options = options;
+			index.save(destination);
+		} else
+			Files.deleteIfExists(ChunkIndex.location(destination));
 	}
 
 	public void backupWorld(Path source, Path destination) throws IOException {
 		log.info("Backing up world " + source + " to " + destination);
 		log.debug("Options:" + optionString());
-		for (Path file : walkTree(source, destination))
-			try {
-				backupFile(file, destination.resolve(source.relativize(file)));
-			} catch (IOException | RuntimeException e) {
-				if (failFast)
-					throw e;
-				else
-					log.error("Could not back up file " + file, e);
-			}
+		writtenFiles.clear();
+		deletedFiles.clear();
+		metrics.start("back up", source, destination);
+		convertWorld(source, destination, this::backupFile, "back up");
 	}
 
 	public void restoreFile(Path source, Path destination) throws IOException {
-		if (nbt.matches(source))
+		if (isSplitRegion(source))
+			restoreAnvilSplit(source, destination);
+		else if (anvil.matches(source) && isStoreRegion(source))
+			restoreAnvilStore(source, destination);
+		else if (nbt.matches(source))
 			restoreNBT(source, destination);
 		else if (anvil.matches(source)) {
 			restoreAnvil(source, destination);
 		} else {
 			log.debug(source + " does not seem to be a convertible file and will be copied");
-			if (!dryRun) {
-				if (overwriteExisting)
-					Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-				else
-					Files.copy(source, destination);
-			}
+			if (!dryRun)
+				copy(source, destination);
 		}
 	}
 
@@ -154,15 +388,17 @@ public class BackupHelper {
 		if (dryRun)
 			return;
 		if (decompress)
-			try (NBTOutputStream t = new NBTOutputStream(new BufferedOutputStream(Files.newOutputStream(destination)), nbtCompression);
-					NBTInputStream s = new NBTInputStream(new BufferedInputStream(Files.newInputStream(source)), NBTInputStream.NO_COMPRESSION)) {
+			try (NBTOutputStream t = new NBTOutputStream(
+					Compression.compress(new BufferedOutputStream(newOutputStream(destination)), nbtCompression, converter.compressionLevel),
+					NBTInputStream.NO_COMPRESSION);
+					NBTInputStream s = new NBTInputStream(new BufferedInputStream(newInputStream(source)), NBTInputStream.NO_COMPRESSION)) {
 				t.writeTag(s.readTag());
 				t.flush();
 			}
 		else
-			try (NBTOutputStream s = new NBTOutputStream(new BufferedOutputStream(Files.newOutputStream(destination)), nbtCompression)) {
-				s.writeTag(converter.gson.fromJson(new String(Files.readAllBytes(source)), CompoundTag.class));
-				s.flush();
+			try (Reader reader = newReader(source);
+					OutputStream s = Compression.compress(new BufferedOutputStream(newOutputStream(destination)), nbtCompression, converter.compressionLevel)) {
+				converter.readJson(reader, s);
 			}
 	}
 
@@ -173,60 +409,349 @@ public class BackupHelper {
 		if (dryRun)
 			return;
 		if (decompress)
-			try (NBTInputStream s = new NBTInputStream(new BufferedInputStream(Files.newInputStream(source)), NBTInputStream.NO_COMPRESSION)) {
-				converter.readNBT((CompoundTag) s.readTag()).write(destination);
+			try (NBTInputStream s = new NBTInputStream(new BufferedInputStream(newInputStream(source)), NBTInputStream.NO_COMPRESSION)) {
+				writeRegion(converter.readNBT((CompoundTag) s.readTag()), destination);
 			}
 		else
-			converter.gson.fromJson(new String(Files.readAllBytes(source)), RegionFile.class).write(destination);
+			try (Reader reader = newReader(source)) {
+				writeRegion(converter.readRegion(reader), destination);
+			}
+		writtenFiles.add(destination);
+	}
+
+	/** Restores a region file that has been backed up with {@link #splitRegions} */
+	public void restoreAnvilSplit(Path source, Path destination) throws IOException {
+		log.debug("Restoring " + source + " as split anvil file");
+		if (Files.exists(destination) && !overwriteExisting)
+			throw new FileAlreadyExistsException(destination.toString(), null, "Run with --overwrite-existing or --delete-destination");
+		if (dryRun)
+			return;
+		CompoundMap header = readTag(source.resolve(HEADER + extension())).getValue();
+		int[] locations = (int[]) header.get("locations").getValue();
+
+		List<Path> chunkFiles = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(source, "c.*" + extension())) {
+			stream.forEach(chunkFiles::add);
+		}
+		CompoundTag[] chunks = new CompoundTag[1024];
+		converter.forEach(chunkFiles.size(), j -> {
+			CompoundTag chunk = readTag(chunkFiles.get(j));
+			chunks[((IntTag) chunk.getValue().get("index")).getValue()] = chunk;
+		});
+		writeRegion(chunks, locations, header, destination);
+	}
+
+	/** Restores a region file that has been backed up into the {@link #chunkStore} */
+	public void restoreAnvilStore(Path source, Path destination) throws IOException {
+		log.debug("Restoring " + source + " from chunk store " + chunkStore);
+		if (chunkStore == null)
+			throw new IOException(source + " has been backed up into a chunk store, restore it with --chunk-store");
+		if (Files.exists(destination) && !overwriteExisting)
+			throw new FileAlreadyExistsException(destination.toString(), null, "Run with --overwrite-existing or --delete-destination");
+		if (dryRun)
+			return;
+		ChunkStore store = new ChunkStore(chunkStore);
+		CompoundMap header = readTag(source).getValue();
+		int[] locations = (int[]) header.get("locations").getValue();
+		int[] timestamps = (int[]) header.get("timestamps").getValue();
+		byte[] compressions = (byte[]) header.get("compressions").getValue();
+		CompoundMap chunkUnused = header.containsKey("chunkUnused") ? ((CompoundTag) header.get("chunkUnused")).getValue() : new CompoundMap();
+
+		List<Tag<?>> hashes = new ArrayList<>(((CompoundTag) header.get("chunks")).getValue().values());
+		CompoundTag[] chunks = new CompoundTag[1024];
+		converter.forEach(hashes.size(), j -> {
+			StringTag hash = (StringTag) hashes.get(j);
+			int i = Integer.parseInt(hash.getName());
+			Path object = store.location(hash.getValue(), extension());
+			if (!Files.exists(object))
+				throw new NoSuchFileException(object.toString(), null, "Chunk " + i + " of " + source + " is missing in the chunk store");
+			/* The same tag that Converter.writeChunk creates */
+			CompoundMap chunk = new CompoundMap();
+			chunk.put(new IntTag("index", i));
+			chunk.put(new IntTag("timestamp", timestamps[i]));
+			chunk.put(new ByteTag("compression", compressions[i]));
+			chunk.put(new CompoundTag("chunk", readTag(object).getValue()));
+			if (chunkUnused.containsKey(hash.getName()))
+				chunk.put(new ByteArrayTag("unused", (byte[]) chunkUnused.get(hash.getName()).getValue()));
+			chunks[i] = new CompoundTag("", chunk);
+		});
+		writeRegion(chunks, locations, header, destination);
+	}
+
+	/** Reassembles the tag that {@link Converter#writeNBT(RegionFile)} would have created for the whole region from its chunks and writes it */
+	void writeRegion(CompoundTag[] chunks, int[] locations, CompoundMap header, Path destination) throws IOException {
+		CompoundMap region = new CompoundMap();
+		for (int i = 0; i < 1024; i++)
+			if (chunks[i] != null) {
+				String name = Integer.toString(locations[i] >>> 8);
+				region.put(new CompoundTag(name, chunks[i].getValue()));
+			}
+		if (header.containsKey("unused"))
+			region.putAll(((CompoundTag) header.get("unused")).getValue());
+		writeRegion(converter.readNBT(new CompoundTag("", region)), destination);
+		writtenFiles.add(destination);
 	}
 
 	public void restoreWorld(Path source, Path destination) throws IOException {
 		log.info("Restoring world " + source + " to " + destination);
 		log.debug("Options:" + optionString());
-		for (Path file : walkTree(source, destination))
+		writtenFiles.clear();
+		deletedFiles.clear();
+		metrics.start("restore", source, destination);
+		convertWorld(source, destination, this::restoreFile, "restore");
+	}
+
+	void convertWorld(Path source, Path destination, FileConversion conversion, String action) throws IOException {
+		if (isZip(source)) {
+			log.debug("Reading " + source + " as zip archive");
+			try (FileSystem zip = FileSystems.newFileSystem(source, (ClassLoader) null)) {
+				convertWorld(zipRoot(zip), destination, conversion, action);
+			}
+			return;
+		}
+		if (delete && Files.exists(destination)) {
+			FileUtils.deleteDirectory(destination.toFile());
+			deletedFiles.add(destination);
+		}
+
+		if (!checkTimestamps) {
+			convertAll(source, destination, null, null, conversion, action);
+			return;
+		}
+
+		Manifest manifest = Manifest.load(destination);
+		String options = action + outputOptions();
+		try {
+			convertAll(source, destination, manifest, options, (from, to) -> {
+				String key = Manifest.key(source.relativize(from));
+				manifest.invalidate(key);
+				/* Hash the content while converting it instead of reading it twice */
+				long hash;
+				try (Manifest.ContentHash content = Manifest.startHash(from)) {
+					conversion.convert(from, to);
+					hash = content.value(manifest.visited.get(key).size());
+				}
+				manifest.update(key, hash, options);
+			}, action);
+
+			for (String key : manifest.removeUnvisited()) {
+				Path file = destination.resolve(key);
+				log.debug("Deleting " + file + ", it does not exist in the source anymore");
+				if (!dryRun) {
+					if (Files.isDirectory(file))
+						FileUtils.deleteDirectory(file.toFile());
+					else
+						Files.deleteIfExists(file);
+					deletedFiles.add(file);
+					Files.deleteIfExists(ChunkIndex.location(file));
+				}
+			}
+		} finally {
+			if (!dryRun) {
+				manifest.save(destination);
+				writtenFiles.add(destination.resolve(Manifest.FILE_NAME));
+			}
+		}
+	}
+
+	/**
+	 * Walks the source tree and converts the files using a pool of {@link #threads} workers while walking. Up to {@link #QUEUE_SIZE} discovered files
+	 * wait for a free worker, the biggest of them are converted first. Starting with the big files keeps the workers busy until the end instead of
+	 * waiting on one large region file that got scheduled last. A worker only starts converting a file once the {@link #maxMemory} budget has room
+	 * for it. If {@link #failFast} is set, the walk and all outstanding work will be cancelled on the first failure and the exception will be
+	 * rethrown.
+	 */
+	void convertAll(Path source, Path destination, Manifest manifest, String options, FileConversion conversion, String action) throws IOException {
+		boolean restore = "restore".equals(action);
+		/* Counted in KiB to fit the permits into an int */
+		int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxMemory >> 10));
+		Semaphore memory = new Semaphore(budget, true);
+		Semaphore queued = new Semaphore(QUEUE_SIZE);
+		int workers = Math.max(1, threads);
+		ExecutorService executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+		BlockingQueue<Future<Void>> completed = new LinkedBlockingQueue<>();
+		List<Future<Void>> tasks = new ArrayList<>();
+		ScheduledExecutorService progress = null;
+		if (progressInterval > 0) {
+			progress = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "mctext-progress");
+				thread.setDaemon(true);
+				return thread;
+			});
+			progress.scheduleAtFixedRate(() -> log.info(metrics.progress()), progressInterval, progressInterval, TimeUnit.SECONDS);
+		}
+		try {
+			int[] done = new int[1];
+			metrics.beginWalk();
 			try {
-				restoreFile(file, destination.resolve(source.relativize(file)));
+				walkTree(source, destination, manifest, options, (file, size) -> {
+					metrics.expect(size);
+					try {
+						queued.acquire();
+						/* Fail early instead of after the walk */
+						for (Future<Void> finished; (finished = completed.poll()) != null; done[0]++)
+							checkResult(finished, tasks);
+					} catch (InterruptedException e) {
+						throw interrupted(tasks);
+					}
+					ConversionTask task = new ConversionTask(size, tasks.size(), () -> {
+						queued.release();
+						int permits = (int) Math.min(budget, memoryCost(file, size, restore) >> 10);
+						if (permits == budget)
+							log.debug(file + " needs more memory than the budget allows, converting it alone");
+						memory.acquire(permits);
+						try {
+							convertFile(file, target(source, destination, file), conversion, size);
+						} catch (IOException | RuntimeException e) {
+							if (failFast)
+								throw e;
+							else
+								log.error("Could not " + action + " file " + file, e);
+						} finally {
+							memory.release(permits);
+						}
+						return null;
+					}, completed);
+					tasks.add(task);
+					executor.execute(task);
+				});
 			} catch (IOException | RuntimeException e) {
-				if (failFast)
-					throw e;
-				else
-					log.error("Could not restore file " + file, e);
+				/* With --fail-fast, don't leave the work of the files found so far running */
+				cancel(tasks);
+				throw e;
+			} finally {
+				metrics.endWalk();
 			}
+			for (; done[0] < tasks.size(); done[0]++)
+				checkResult(completed.take(), tasks);
+		} catch (InterruptedException e) {
+			throw interrupted(tasks);
+		} finally {
+			executor.shutdownNow();
+			if (progress != null)
+				progress.shutdownNow();
+		}
 	}
 
-	Queue<Path> walkTree(Path source, Path destination) throws IOException {
-		if (delete)
-			FileUtils.deleteDirectory(destination.toFile());
+	private static void cancel(List<Future<Void>> tasks) {
+		tasks.forEach(task -> task.cancel(true));
+	}
+
+	/** Rethrows the exception of a finished conversion, after cancelling all others */
+	private static void checkResult(Future<Void> task, List<Future<Void>> tasks) throws IOException, InterruptedException {
+		try {
+			task.get();
+		} catch (ExecutionException e) {
+			cancel(tasks);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static InterruptedIOException interrupted(List<Future<Void>> tasks) {
+		cancel(tasks);
+		Thread.currentThread().interrupt();
+		return new InterruptedIOException("Interrupted while waiting for the conversion to finish");
+	}
+
+	/**
+	 * A rough estimate of how many bytes of heap the conversion of the file will take. The streaming conversions only keep one chunk at a time,
+	 * building the tag tree takes a multiple of the compressed size, and copied files take nothing.
+	 */
+	long memoryCost(Path file, long size, boolean restore) {
+		double factor;
+		if (restore && chunkStore != null && anvil.matches(file))
+			/* The backup only holds the hashes, but restoring it builds the tree of the whole region. Assume a region of average size. */
+			return (long) (TREE_EXPANSION * STORE_REGION_SIZE);
+		if (isSplitRegion(file))
+			factor = UNCOMPRESSED_TREE_EXPANSION;
+		else if (!anvil.matches(file) && !nbt.matches(file))
+			factor = 0;
+		else if (decompress)
+			factor = restore ? UNCOMPRESSED_TREE_EXPANSION : TREE_EXPANSION;
+		else if (anvil.matches(file) && converter.parallel)
+			factor = PARALLEL_EXPANSION;
+		else
+			factor = STREAMING_EXPANSION;
+		return (long) (factor * size);
+	}
+
+	/** Converts a single file and records its {@link #metrics} */
+	void convertFile(Path source, Path destination, FileConversion conversion) throws IOException {
+		convertFile(source, destination, conversion, Files.isDirectory(source) ? sizeOf(source) : Files.size(source));
+	}
+
+	void convertFile(Path source, Path destination, FileConversion conversion, long size) throws IOException {
+		Metrics.Recorder recorder = metrics.begin(source, size);
+		boolean success = false;
+		try {
+			conversion.convert(source, destination);
+			success = true;
+		} finally {
+			metrics.end(recorder, success);
+		}
+	}
 
-		Queue<Path> files = new LinkedList<>();
+	/**
+	 * Walks the source tree, creates the folder structure in the destination and passes all files that need to be converted to the sink as soon as
+	 * they are found, together with their size. The attributes from the walk are used wherever possible, the destination is only looked at if
+	 * existing files must not be overwritten or the manifest needs it.
+	 */
+	void walkTree(Path source, Path destination, Manifest manifest, String options, FileSink sink) throws IOException {
 		Files.walkFileTree(source, new FileVisitor<Path>() {
 
 			@Override
 			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-				dir = destination.resolve(source.relativize(dir));
-				if (!Files.exists(dir))
+				if (dir.getFileName() != null && dir.getFileName().toString().equals(ChunkIndex.FOLDER))
+					return FileVisitResult.SKIP_SUBTREE;
+				/* Compare the paths, the store might not exist yet */
+				if (chunkStore != null && dir.getFileSystem() == chunkStore.getFileSystem()
+						&& dir.toAbsolutePath().normalize().equals(chunkStore.toAbsolutePath().normalize()))
+					return FileVisitResult.SKIP_SUBTREE;
+				if (isSplitRegion(dir)) {
+					/* Treat it like a single file */
+					visit(dir, attrs, sizeOf(dir));
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				dir = target(source, destination, dir);
+				if (log.isDebugEnabled() && !Files.exists(dir))
 					log.debug("Creating folder " + dir);
-				Files.createDirectories(dir);
+				createDirectories(dir);
 				return FileVisitResult.CONTINUE;
 			}
 
 			@Override
 			public FileVisitResult visitFile(Path localSource, BasicFileAttributes attrs) throws IOException {
-				Path localDestination = destination.resolve(source.relativize(localSource));
-				if (Files.exists(localDestination) && !overwriteExisting) {
+				if (!localSource.getFileName().toString().equals(Manifest.FILE_NAME))
+					visit(localSource, attrs, attrs.size());
+				return FileVisitResult.CONTINUE;
+			}
+
+			void visit(Path localSource, BasicFileAttributes attrs, long size) throws IOException {
+				Path localDestination = target(source, destination, localSource);
+				String key = manifest == null ? null : Manifest.key(source.relativize(localSource));
+				if (manifest != null)
+					manifest.visit(key, attrs);
+
+				boolean exists = (manifest != null || !overwriteExisting) && Files.exists(localDestination);
+				if (exists && manifest != null && manifest.isUpToDate(key, localSource, attrs, options)) {
+					log.debug("Skipping " + localSource + ", it did not change since the last conversion");
+					metrics.skipped();
+				} else if (exists && !overwriteExisting) {
 					IOException e = new FileAlreadyExistsException(localDestination.toString(), null, "Run with --overwrite-existing or --delete-destination");
 					if (failFast) {
 						throw e;
 					} else {
 						log.error("Could not back up", e);
 					}
-				} else if (Files.exists(localDestination) && checkTimestamps &&
-						Files.getLastModifiedTime(localSource).compareTo(Files.getLastModifiedTime(localDestination)) < 0)
-					log.debug("Skipping " + localSource + " based on file time");
-				else {
-					files.add(localSource);
-				}
-				return FileVisitResult.CONTINUE;
+				} else
+					sink.accept(localSource, size);
 			}
 
 			@Override
@@ -240,7 +765,123 @@ public class BackupHelper {
 				return FileVisitResult.CONTINUE;
 			}
 		});
-		return files;
+	}
+
+	/** The location in the destination for a file in the source. The source may be on a different file system, like a zip archive. */
+	static Path target(Path source, Path destination, Path file) {
+		return destination.resolve(source.relativize(file).toString());
+	}
+
+	/** Checks if the path is a zip file that can be used as source instead of a folder */
+	static boolean isZip(Path path) {
+		return Files.isRegularFile(path) && path.getFileName().toString().toLowerCase().endsWith(".zip");
+	}
+
+	/**
+	 * The folder to convert within a zip archive. If the archive contains only a single folder and nothing else, like when zipping a world folder
+	 * itself, that folder will be used instead of the root.
+	 */
+	static Path zipRoot(FileSystem zip) throws IOException {
+		Path root = zip.getRootDirectories().iterator().next();
+		try (Stream<Path> files = Files.list(root)) {
+			List<Path> content = files.collect(Collectors.toList());
+			if (content.size() == 1 && Files.isDirectory(content.get(0)))
+				return content.get(0);
+		}
+		return root;
+	}
+
+	/** Checks if the file is the header of a region that has been backed up into a {@link #chunkStore}, by looking for the marker at its start */
+	boolean isStoreRegion(Path file) throws IOException {
+		if (!Files.isRegularFile(file))
+			return false;
+		if (decompress)
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				return in.readByte() == TagType.TAG_COMPOUND.getId() && in.readUTF().isEmpty()
+						&& in.readByte() == TagType.TAG_BYTE.getId() && in.readUTF().equals(STORE_MARKER);
+			} catch (EOFException e) {
+				return false;
+			}
+		else
+			try (JsonReader in = new JsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+				in.setLenient(true);
+				if (in.peek() != JsonToken.BEGIN_OBJECT)
+					return false;
+				in.beginObject();
+				return in.hasNext() && in.nextName().equals(KeyCodec.encode(STORE_MARKER, TagType.TAG_BYTE));
+			} catch (EOFException | MalformedJsonException e) {
+				return false;
+			}
+	}
+
+	/** Checks if the path is a folder containing a region file that has been backed up with {@link #splitRegions} */
+	static boolean isSplitRegion(Path path) {
+		return anvil.matches(path) && Files.isDirectory(path)
+				&& (Files.exists(path.resolve(HEADER + ".json")) || Files.exists(path.resolve(HEADER + ".nbt")));
+	}
+
+	static long sizeOf(Path folder) {
+		try (Stream<Path> files = Files.list(folder)) {
+			long size = 0;
+			for (Path file : (Iterable<Path>) files::iterator)
+				size += Files.size(file);
+			return size;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/** The file extension of files containing a single tag, depending on {@link #decompress} */
+	String extension() {
+		return decompress ? ".nbt" : ".json";
+	}
+
+	/** Writes a tag to a file, as json or uncompressed nbt depending on {@link #decompress} */
+	void writeTag(CompoundTag tag, Path file) throws IOException {
+		if (decompress)
+			try (NBTOutputStream out = new NBTOutputStream(new BufferedOutputStream(newOutputStream(file)), NBTInputStream.NO_COMPRESSION)) {
+				out.writeTag(tag);
+			}
+		else
+			try (Writer writer = newWriter(newOutputStream(file))) {
+				converter.writeJson(tag, writer);
+			}
+	}
+
+	/** Reads a tag written by {@link #writeTag(CompoundTag, Path)} */
+	CompoundTag readTag(Path file) throws IOException {
+		if (decompress)
+			try (NBTInputStream in = new NBTInputStream(new BufferedInputStream(newInputStream(file)), NBTInputStream.NO_COMPRESSION)) {
+				return (CompoundTag) in.readTag();
+			}
+		else
+			try (Reader reader = newReader(file)) {
+				return converter.readJson(reader);
+			}
+	}
+
+	/** All options that change the content of the converted files. If they differ from the last run, the files need to be converted again. */
+	protected String outputOptions() {
+		StringBuilder b = new StringBuilder();
+		if (converter.keepUnusedData)
+			b.append(" --keep-unused");
+		if (converter.prettyPrinting)
+			b.append(" --pretty");
+		if (nbtCompression != 1)
+			b.append(" --nbt-compression=" + nbtCompression);
+		if (decompress)
+			b.append(" --decompress");
+		if (splitRegions)
+			b.append(" --split-regions");
+		if (chunkStore != null)
+			b.append(" --chunk-store");
+		if (compact)
+			b.append(" --compact");
+		if (converter.hexArrays)
+			b.append(" --hex-arrays");
+		if (converter.compressionLevel != -1)
+			b.append(" --restore-compression-level=" + converter.compressionLevel);
+		return b.toString();
 	}
 
 	protected String optionString() {
@@ -249,6 +890,10 @@ public class BackupHelper {
 			b.append("--keep-unused");
 		if (converter.prettyPrinting)
 			b.append("--pretty");
+		if (converter.parallel)
+			b.append(" --parallel-chunks");
+		if (converter.compressionLevel != -1)
+			b.append(" --restore-compression-level=" + converter.compressionLevel);
 		if (dryRun)
 			b.append(" --dry-run");
 		if (nbtCompression != 1)
@@ -263,6 +908,160 @@ public class BackupHelper {
 			b.append(" --delete-destination");
 		if (checkTimestamps)
 			b.append(" --lazy");
+		if (incremental)
+			b.append(" --incremental");
+		if (splitRegions)
+			b.append(" --split-regions");
+		if (chunkStore != null)
+			b.append(" --chunk-store=" + chunkStore);
+		if (compact)
+			b.append(" --compact");
+		b.append(" --threads=" + threads);
+		b.append(" --max-memory=" + (maxMemory >> 20) + "M");
 		return b.toString();
 	}
+
+	static Reader newReader(Path file) throws IOException {
+		return new BufferedReader(new InputStreamReader(newInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/** Opens a file for reading, counting the time and bytes as {@link Phase#READ} */
+	static InputStream newInputStream(Path file) throws IOException {
+		return Metrics.time(Manifest.hashing(file, Files.newInputStream(file)), Phase.READ);
+	}
+
+	/** Maps a source region file, counting its size and chunks, and hashing it for the manifest if needed */
+	static RegionFile mapRegion(Path file) throws IOException {
+		Phase previous = Metrics.enter(Phase.READ);
+		try {
+			ByteBuffer data = RegionFile.read(file);
+			Manifest.hashing(file, data);
+			RegionFile region = new RegionFile(file, data);
+			Metrics.countRead(data.capacity());
+			Metrics.chunks(chunkCount(region));
+			return region;
+		} finally {
+			Metrics.exit(previous);
+		}
+	}
+
+	/** Writes a restored region file, {@link #compact} if requested, counting its size and chunks */
+	void writeRegion(RegionFile region, Path file) throws IOException {
+		Phase previous = Metrics.enter(Phase.WRITE);
+		try {
+			region.write(file, compact);
+			Metrics.countWritten(Files.size(file));
+			Metrics.chunks(chunkCount(region));
+		} finally {
+			Metrics.exit(previous);
+		}
+	}
+
+	static int chunkCount(RegionFile region) {
+		int count = 0;
+		for (ByteBuffer chunk : region.chunks)
+			if (chunk != null)
+				count++;
+		return count;
+	}
+
+	static Writer newWriter(Path file) throws IOException {
+		return newWriter(Metrics.time(Files.newOutputStream(file), Phase.WRITE));
+	}
+
+	static Writer newWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a file in the destination for writing. All converted and copied files go through this, except for restored region files and the
+	 * temporary files of {@link #incremental} backups. Subclasses may override it to send the output somewhere else than the file system.
+	 */
+	protected OutputStream newOutputStream(Path file) throws IOException {
+		writtenFiles.add(file);
+		return Metrics.time(Files.newOutputStream(file), Phase.WRITE);
+	}
+
+	/** Creates a folder in the destination, together with its parents */
+	protected void createDirectories(Path dir) throws IOException {
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Creates a file in the destination unless it already exists, and returns if it did. The content goes to a temporary file first, which is moved in
+	 * place once it is complete. Thus a failed conversion never leaves an incomplete file behind, and threads creating the same file at once don't get
+	 * in each other's way. Used for the objects of the {@link #chunkStore}, which are never overwritten. Like {@link #newOutputStream(Path)}, subclasses
+	 * may override it to send the output somewhere else.
+	 */
+	protected boolean createFile(Path file, ContentWriter writer) throws IOException {
+		if (Files.exists(file))
+			return false;
+		createDirectories(file.getParent());
+		Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream out = Metrics.time(Files.newOutputStream(tmp), Phase.WRITE)) {
+				writer.write(out);
+			}
+			Files.move(tmp, file);
+			writtenFiles.add(file);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			/* Somebody else was faster */
+			return false;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/** Copies a file that can't be converted */
+	void copy(Path source, Path destination) throws IOException {
+		if (!overwriteExisting && Files.exists(destination))
+			throw new FileAlreadyExistsException(destination.toString());
+		try (InputStream in = newInputStream(source); OutputStream out = newOutputStream(destination)) {
+			IOUtils.copy(in, out);
+		}
+	}
+
+	@FunctionalInterface
+	static interface FileConversion {
+		void convert(Path source, Path destination) throws IOException;
+	}
+
+	@FunctionalInterface
+	static interface ContentWriter {
+		void write(OutputStream out) throws IOException;
+	}
+
+	@FunctionalInterface
+	static interface FileSink {
+		void accept(Path file, long size) throws IOException;
+	}
+
+	/**
+	 * A conversion waiting in the priority queue of the workers. Bigger files come first, files of the same size in the order they were found. Puts
+	 * itself into the given queue once it is done.
+	 */
+	static class ConversionTask extends FutureTask<Void> implements Comparable<ConversionTask> {
+		final long							size;
+		final int							order;
+		final BlockingQueue<Future<Void>>	completed;
+
+		ConversionTask(long size, int order, Callable<Void> conversion, BlockingQueue<Future<Void>> completed) {
+			super(conversion);
+			this.size = size;
+			this.order = order;
+			this.completed = completed;
+		}
+
+		@Override
+		protected void done() {
+			completed.add(this);
+		}
+
+		@Override
+		public int compareTo(ConversionTask o) {
+			int result = Long.compare(o.size, size);
+			return result != 0 ? result : Integer.compare(order, o.order);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package de.piegames.mctext;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers where the text of each chunk is located in a region file that has been converted to json, together with the chunk's timestamp and a
+ * checksum of its raw data. When the region gets converted again, the text of all chunks that did not change can be copied from the old output
+ * instead of converting them again. The index of a file is stored in a hidden folder next to it.
+ */
+class ChunkIndex {
+
+	public static final String	FOLDER		= ".mctext-chunks";
+	static final int			VERSION		= 1;
+
+	/** The options used for the conversion, the index is only valid if they did not change */
+	String						options		= "";
+	/** Size and modification time of the converted file, to detect if it changed in the meantime */
+	long						outputSize, outputModified;
+	final int[]					timestamps	= new int[1024];
+	final int[]					checksums	= new int[1024];
+	/** Position and length of each chunk's text in characters. Chunks that do not exist have a length of -1. */
+	final long[]				offsets		= new long[1024];
+	final int[]					lengths		= new int[1024];
+
+	/** The position in the old output while reading from it */
+	private long				position;
+
+	public ChunkIndex() {
+		Arrays.fill(lengths, -1);
+	}
+
+	public static Path location(Path output) {
+		return output.resolveSibling(FOLDER).resolve(output.getFileName().toString());
+	}
+
+	/**
+	 * Loads the index of the given converted file. Returns {@code null} if there is none, if it was created with different options or if the
+	 * converted file has been modified since.
+	 */
+	public static ChunkIndex load(Path output, String options) throws IOException {
+		Path file = location(output);
+		if (!Files.exists(file) || !Files.exists(output))
+			return null;
+		ChunkIndex index = new ChunkIndex();
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			if (in.readInt() != VERSION)
+				return null;
+			index.options = in.readUTF();
+			index.outputSize = in.readLong();
+			index.outputModified = in.readLong();
+			for (int i = 0; i < 1024; i++) {
+				index.timestamps[i] = in.readInt();
+				index.checksums[i] = in.readInt();
+				index.offsets[i] = in.readLong();
+				index.lengths[i] = in.readInt();
+			}
+		} catch (EOFException e) {
+			return null;
+		}
+		BasicFileAttributes attrs = Files.readAttributes(output, BasicFileAttributes.class);
+		if (!index.options.equals(options) || index.outputSize != attrs.size() || index.outputModified != attrs.lastModifiedTime().toMillis())
+			return null;
+		return index;
+	}
+
+	/** Saves the index of the given converted file, which must have been fully written already. */
+	public void save(Path output) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(output, BasicFileAttributes.class);
+		outputSize = attrs.size();
+		outputModified = attrs.lastModifiedTime().toMillis();
+		Path file = location(output);
+		Files.createDirectories(file.getParent());
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+			out.writeInt(VERSION);
+			out.writeUTF(options);
+			out.writeLong(outputSize);
+			out.writeLong(outputModified);
+			for (int i = 0; i < 1024; i++) {
+				out.writeInt(timestamps[i]);
+				out.writeInt(checksums[i]);
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+			}
+		}
+	}
+
+	/** A checksum over all sectors of the chunk, including any unused data after it */
+	public static int checksum(ByteBuffer chunk) {
+		ByteBuffer data = chunk.duplicate();
+		data.clear();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/** Checks if the chunk is still the same as when the index was created, so that its old text can be reused */
+	public boolean isUnchanged(int i, int timestamp, int checksum) {
+		return lengths[i] >= 0 && timestamps[i] == timestamp && checksums[i] == checksum;
+	}
+
+	/**
+	 * Reads the text of an unchanged chunk from the old output. The reader must be positioned at the start of the file when this is called for the
+	 * first time, and the chunks must be read in ascending order.
+	 */
+	public String read(Reader oldOutput, int i) throws IOException {
+		long skip = offsets[i] - position;
+		if (skip < 0)
+			throw new IllegalStateException("Chunks must be read in ascending order");
+		while (skip > 0) {
+			long skipped = oldOutput.skip(skip);
+			if (skipped <= 0)
+				throw new EOFException();
+			skip -= skipped;
+		}
+		char[] text = new char[lengths[i]];
+		int read = 0;
+		while (read < text.length) {
+			int r = oldOutput.read(text, read, text.length - read);
+			if (r < 0)
+				throw new EOFException();
+			read += r;
+		}
+		position = offsets[i] + lengths[i];
+		return new String(text);
+	}
+}
@@ -0,0 +1,51 @@
+package de.piegames.mctext;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A folder of converted chunks, each stored once under a hash of its compressed data and the options it has been converted with. Region files backed
+ * up into a chunk store only contain their header and the hashes of their chunks, so chunks that did not change since an earlier backup take no
+ * additional space. Like in git, the objects are spread over subfolders named after the first two hex digits of their hash. Objects are never
+ * deleted, even if no backup refers to them anymore.
+ */
+class ChunkStore {
+
+	private static final char[]						HEX		= "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest>	SHA1	= ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	});
+
+	final Path										folder;
+
+	public ChunkStore(Path folder) {
+		this.folder = folder;
+	}
+
+	/** The hash of a chunk, over the options, its compression type and its compressed data. The timestamp and unused data are not part of it. */
+	static String hash(RegionFile file, int i, String options) {
+		MessageDigest digest = SHA1.get();
+		digest.reset();
+		digest.update(options.getBytes(StandardCharsets.UTF_8));
+		digest.update(file.chunks[i].get(4));
+		digest.update(file.chunkData(i));
+		byte[] hash = digest.digest();
+		char[] chars = new char[hash.length * 2];
+		for (int j = 0; j < hash.length; j++) {
+			chars[2 * j] = HEX[(hash[j] >> 4) & 0xF];
+			chars[2 * j + 1] = HEX[hash[j] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	/** The file of the object with the given hash */
+	public Path location(String hash, String extension) {
+		return folder.resolve(hash.substring(0, 2)).resolve(hash.substring(2) + extension);
+	}
+}
@@ -0,0 +1,133 @@
+package de.piegames.mctext;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.flowpowered.nbt.stream.NBTInputStream;
+import com.flowpowered.nbt.stream.NBTOutputStream;
+
+import de.piegames.mctext.Metrics.Phase;
+
+/**
+ * Compresses and decompresses nbt data like {@link NBTInputStream} and {@link NBTOutputStream} do, but with a configurable deflate level. Every
+ * thread keeps one zlib deflater per level that gets reused, so a thread must not compress two things at the same time.
+ */
+final class Compression {
+
+	private static final ThreadLocal<Deflater[]>	DEFLATERS	= ThreadLocal.withInitial(() -> new Deflater[11]);
+	private static final ThreadLocal<byte[]>		SCRATCH		= ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+	private Compression() {
+	}
+
+	/** Throws if the level is neither {@link Deflater#DEFAULT_COMPRESSION} nor between 0 and 9 */
+	static int checkLevel(int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		return level;
+	}
+
+	/** The reset zlib deflater of this thread for that level */
+	static Deflater deflater(int level) {
+		Deflater[] deflaters = DEFLATERS.get();
+		Deflater deflater = deflaters[level + 1];
+		if (deflater == null)
+			deflater = deflaters[level + 1] = new Deflater(level);
+		else
+			deflater.reset();
+		return deflater;
+	}
+
+	/** Wraps the stream to decompress it for the given compression. Unknown compressions are rejected like {@link NBTInputStream} does. */
+	static InputStream decompress(InputStream in, int compression) throws IOException {
+		switch (compression) {
+		case NBTInputStream.GZIP_COMPRESSION:
+			return new BufferedInputStream(Metrics.time(new GZIPInputStream(in), Phase.INFLATE));
+		case NBTInputStream.ZLIB_COMPRESSION:
+			return new BufferedInputStream(Metrics.time(new InflaterInputStream(in), Phase.INFLATE));
+		case NBTInputStream.NO_COMPRESSION:
+			return in;
+		default:
+			throw new IllegalArgumentException("Unsupported compression type: " + compression);
+		}
+	}
+
+	/**
+	 * Wraps the stream to compress it for the given compression. Unknown compressions are rejected. The zlib deflater is shared, so the returned stream
+	 * must be closed before anything else gets compressed on this thread.
+	 */
+	static OutputStream compress(OutputStream out, int compression, int level) throws IOException {
+		switch (compression) {
+		case NBTInputStream.GZIP_COMPRESSION:
+			return Metrics.time(new GZIPOutputStream(out) {
+				{
+					def.setLevel(level);
+				}
+			}, Phase.DEFLATE);
+		case NBTInputStream.ZLIB_COMPRESSION:
+			return Metrics.time(new DeflaterOutputStream(out, deflater(level), 8192), Phase.DEFLATE);
+		case NBTInputStream.NO_COMPRESSION:
+			return out;
+		default:
+			throw new IllegalArgumentException("Unsupported compression type: " + compression);
+		}
+	}
+
+	/**
+	 * Compresses the chunk and puts it into sectors, with the chunk header in front and the unused data (if any) after it. Zlib chunks are deflated into
+	 * a scratch buffer of this thread, so the data is only copied once into the sectors.
+	 */
+	static ByteBuffer compressChunk(byte[] nbt, int offset, int length, byte compression, int level, byte[] unused) throws IOException {
+		if (compression != NBTInputStream.ZLIB_COMPRESSION) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (OutputStream out = compress(baos, compression, level)) {
+				out.write(nbt, offset, length);
+			}
+			byte[] data = baos.toByteArray();
+			return chunkBuffer(data, data.length, compression, unused);
+		}
+
+		Phase previous = Metrics.enter(Phase.DEFLATE);
+		try {
+			Deflater deflater = deflater(level);
+			deflater.setInput(nbt, offset, length);
+			deflater.finish();
+			byte[] data = SCRATCH.get();
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == data.length)
+					SCRATCH.set(data = Arrays.copyOf(data, data.length * 2));
+				size += deflater.deflate(data, size, data.length - size);
+			}
+			return chunkBuffer(data, size, compression, unused);
+		} finally {
+			Metrics.exit(previous);
+		}
+	}
+
+	/**
+	 * Puts the compressed chunk data into sectors, with the chunk header in front and the unused data (if any) after it. If the chunk got recompressed
+	 * to a different size, the unused data is cut off where the sectors end.
+	 */
+	static ByteBuffer chunkBuffer(byte[] chunkData, int length, byte compression, byte[] unused) {
+		int chunkLength = (int) Math.ceil((length + 6) / 4096d);
+		ByteBuffer buffer = ByteBuffer.allocate(chunkLength << 12);
+		buffer.putInt(length + 1);
+		buffer.put(compression);
+		buffer.put(chunkData, 0, length);
+		if (unused != null)
+			buffer.put(unused, 0, Math.min(unused.length, buffer.remaining()));
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -1,34 +1,60 @@
 package de.piegames.mctext;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.nio.LongBuffer;
-import java.nio.ShortBuffer;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.IOUtils;
 
 import com.flowpowered.nbt.*;
 import com.flowpowered.nbt.stream.NBTInputStream;
 import com.flowpowered.nbt.stream.NBTOutputStream;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
+/**
+ * Converts NBT and region data to json and back. Instances hold no mutable state and can safely be shared between multiple threads.
+ */
 public class Converter {
 
 	public final boolean prettyPrinting;
 	public final boolean keepUnusedData;
+	/**
+	 * If set, the chunks of a region file will be decoded and encoded on the common fork-join pool. The chunks are still assembled in index order, so
+	 * the output will be the same as in serial mode.
+	 */
+	public final boolean parallel;
+	/** The deflate level for compressing chunks and nbt files when restoring, from 0 to 9 or -1 for zlib's default */
+	public final int compressionLevel;
+	/**
+	 * Write int and long arrays as json arrays of hex words instead of Base64 strings. Together with pretty printing, every word is on its own line,
+	 * which makes diffs and git's delta compression a lot better. Reading detects both encodings.
+	 */
+	public final boolean hexArrays;
 
 	public final Gson gson;
 
@@ -37,8 +63,23 @@ public class Converter {
 	}
 
 	public Converter(boolean prettyPrinting, boolean keepUnusedData) {
+		this(prettyPrinting, keepUnusedData, false);
+	}
+
+	public Converter(boolean prettyPrinting, boolean keepUnusedData, boolean parallel) {
+		this(prettyPrinting, keepUnusedData, parallel, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public Converter(boolean prettyPrinting, boolean keepUnusedData, boolean parallel, int compressionLevel) {
+		this(prettyPrinting, keepUnusedData, parallel, compressionLevel, false);
+	}
+
+	public Converter(boolean prettyPrinting, boolean keepUnusedData, boolean parallel, int compressionLevel, boolean hexArrays) {
 		this.prettyPrinting = prettyPrinting;
 		this.keepUnusedData = keepUnusedData;
+		this.parallel = parallel;
+		this.compressionLevel = Compression.checkLevel(compressionLevel);
+		this.hexArrays = hexArrays;
 
 		GsonBuilder builder = new GsonBuilder();
 		builder.setLenient();
@@ -76,6 +117,309 @@ public class Converter {
 		}
 	};
 
+	/**
+	 * Writes the tag as json directly to the writer, without building the whole document as string in memory first. The output is the same as the one of
+	 * {@code gson.toJson(tag)}. The writer will be flushed, but not closed.
+	 */
+	public void writeJson(Tag<?> tag, Writer writer) throws IOException {
+		JsonWriter out = newJsonWriter(writer);
+		write(out, tag, "", false);
+		out.flush();
+	}
+
+	/**
+	 * Writes the region file as json directly to the writer. The output is the same as the one of {@code gson.toJson(file)}. The writer will be
+	 * flushed, but not closed.
+	 */
+	public void writeJson(RegionFile file, Writer writer) throws IOException {
+		if (hasSharedSectors(file)) {
+			/* The chunks will overwrite each other in the compound, only the tree can handle that correctly */
+			writeJson(writeNBT(file), writer);
+			return;
+		}
+
+		/* In parallel mode, convert every chunk to text on its own. Then the text only has to be put together in order. */
+		String[] texts = new String[1024];
+		if (parallel)
+			forEach(1024, i -> {
+				if (file.chunks[i] != null)
+					texts[i] = writeChunkText(file, i);
+			});
+
+		JsonWriter out = newJsonWriter(writer);
+		out.beginObject();
+		for (int i = 0; i < 1024; i++) {
+			if (file.chunks[i] == null)
+				continue;
+			out.name(KeyCodec.encode(Integer.toString(file.locations2.get(i) >>> 8), TagType.TAG_COMPOUND));
+			if (texts[i] != null)
+				out.jsonValue(texts[i]);
+			else
+				try (InputStream in = file.openChunk(i)) {
+					writeChunk(file, i, in, out);
+				}
+			texts[i] = null;
+		}
+		writeUnused(file, out);
+		out.endObject();
+		out.flush();
+	}
+
+	/**
+	 * The json text of a single chunk as it appears within the region, with the indentation of that nesting level. It is rendered within a dummy object,
+	 * and {@link CountingWriter} tells where the chunk's text starts.
+	 */
+	String writeChunkText(RegionFile file, int i) throws IOException {
+		StringWriter text = new StringWriter();
+		CountingWriter counting = new CountingWriter(text);
+		JsonWriter out = newJsonWriter(counting);
+		out.beginObject();
+		out.name(KeyCodec.encode(Integer.toString(file.locations2.get(i) >>> 8), TagType.TAG_COMPOUND));
+		counting.mark();
+		try (InputStream in = file.openChunk(i)) {
+			writeChunk(file, i, in, out);
+		}
+		return text.toString().substring((int) counting.getObjectStart(), (int) counting.getPosition());
+	}
+
+	/**
+	 * Writes the region file as json like {@link #writeJson(RegionFile, Writer)} and returns an index of where each chunk is located in the output. If
+	 * the index of a previous conversion of the same region is given together with a reader on its output, the text of all chunks that did not change
+	 * since then will be copied from there instead of converting them again. Returns {@code null} if the region can't be indexed because multiple
+	 * chunks point to the same sector. The index costs a checksum of every chunk, and in parallel mode, only the decompression runs in parallel.
+	 */
+	public ChunkIndex writeJson(RegionFile file, Writer writer, ChunkIndex previous, Reader previousOutput) throws IOException {
+		if (hasSharedSectors(file)) {
+			/* The chunks will overwrite each other in the compound, only the tree can handle that correctly */
+			writeJson(writeNBT(file), writer);
+			return null;
+		}
+
+		int[] checksums = new int[1024];
+		boolean[] changed = new boolean[1024];
+		/* In parallel mode, decompress the chunks up front on all threads. The conversion to json has to happen in order. */
+		byte[][] chunks = new byte[1024][];
+		forEach(1024, i -> {
+			if (file.chunks[i] == null)
+				return;
+			checksums[i] = ChunkIndex.checksum(file.chunks[i]);
+			changed[i] = previous == null || !previous.isUnchanged(i, file.timestamps2.get(i), checksums[i]);
+			if (changed[i] && parallel)
+				try (InputStream in = file.openChunk(i)) {
+					chunks[i] = IOUtils.toByteArray(in);
+				}
+		});
+
+		ChunkIndex index = new ChunkIndex();
+		CountingWriter counting = new CountingWriter(writer);
+		JsonWriter out = newJsonWriter(counting);
+		out.beginObject();
+		for (int i = 0; i < 1024; i++) {
+			if (file.chunks[i] == null)
+				continue;
+			String name = Integer.toString(file.locations2.get(i) >>> 8);
+			out.name(KeyCodec.encode(name, TagType.TAG_COMPOUND));
+			counting.mark();
+			if (!changed[i])
+				out.jsonValue(previous.read(previousOutput, i));
+			else
+				try (InputStream in = chunks[i] != null ? new ByteArrayInputStream(chunks[i]) : file.openChunk(i)) {
+					writeChunk(file, i, in, out);
+				}
+			chunks[i] = null;
+			index.timestamps[i] = file.timestamps2.get(i);
+			index.checksums[i] = checksums[i];
+			index.offsets[i] = counting.getObjectStart();
+			index.lengths[i] = (int) (counting.getPosition() - counting.getObjectStart());
+		}
+		writeUnused(file, out);
+		out.endObject();
+		out.flush();
+		return index;
+	}
+
+	void writeUnused(RegionFile file, JsonWriter out) throws IOException {
+		if (file.unused != null && keepUnusedData)
+			for (Entry<Integer, ByteBuffer> e : file.unused.entrySet())
+				write(out, new ByteArrayTag(String.valueOf(e.getKey()), sectorData(e.getValue())), String.valueOf(e.getKey()), true);
+	}
+
+	/**
+	 * Reads a single uncompressed binary nbt tag from the stream and writes it as json, without building the tag in memory. The output is the same as
+	 * the one of {@link #writeJson(Tag, Writer)} on the parsed tag. The writer will be flushed, but neither the stream nor the writer will be closed.
+	 */
+	public void writeJson(InputStream nbt, Writer writer) throws IOException {
+		JsonWriter out = newJsonWriter(writer);
+		new NBTTranscoder(nbt, out, hexArrays).transcode();
+		out.flush();
+	}
+
+	/** Writes a single chunk of the region as json, like {@link #writeJson(Tag, Writer)} on {@link #writeChunk(RegionFile, int)} */
+	void writeChunkJson(RegionFile file, int i, Writer writer) throws IOException {
+		JsonWriter out = newJsonWriter(writer);
+		try (InputStream in = file.openChunk(i)) {
+			writeChunk(file, i, in, out);
+		}
+		out.flush();
+	}
+
+	static boolean hasSharedSectors(RegionFile file) {
+		BitSet positions = new BitSet();
+		for (int i = 0; i < 1024; i++)
+			if (file.chunks[i] != null) {
+				int chunkPos = file.locations2.get(i) >>> 8;
+				if (positions.get(chunkPos))
+					return true;
+				positions.set(chunkPos);
+			}
+		return false;
+	}
+
+	/**
+	 * Parses a tag directly from the json read from the reader, without loading the whole document into memory first. To get a region file, pass the
+	 * result to {@link #readNBT(CompoundTag)}. The reader will not be closed.
+	 */
+	public CompoundTag readJson(Reader reader) throws IOException {
+		JsonReader in = gson.newJsonReader(reader);
+		CompoundTag tag = (CompoundTag) read(in, "", TagType.TAG_COMPOUND);
+		checkConsumed(in);
+		return tag;
+	}
+
+	/**
+	 * Reads a tag from json and writes it as uncompressed binary nbt to the stream, without building the tag in memory. The output is the same as
+	 * writing the result of {@link #readJson(Reader)} with an uncompressed {@link NBTOutputStream}. Neither the reader nor the stream will be closed.
+	 */
+	public void readJson(Reader reader, OutputStream nbt) throws IOException {
+		JsonReader in = gson.newJsonReader(reader);
+		JsonTranscoder transcoder = new JsonTranscoder(in, nbt);
+		transcoder.transcodeCompound();
+		checkConsumed(in);
+		transcoder.writeTo(nbt);
+	}
+
+	/**
+	 * Reads a region file from json. This is the same as {@code readNBT(readJson(reader))}, but the chunks are converted to nbt directly while reading
+	 * them instead of building their tag tree. In parallel mode, the chunks are compressed on the common fork-join pool while the next ones are being
+	 * read.
+	 */
+	public RegionFile readRegion(Reader reader) throws IOException {
+		ByteBuffer locations = ByteBuffer.allocate(4096);
+		ByteBuffer timestamps = ByteBuffer.allocate(4096);
+		ByteBuffer[] chunks = new ByteBuffer[1024];
+		Map<Integer, ByteBuffer> unused = new HashMap<>();
+		RegionFile file = new RegionFile(locations, timestamps, chunks, unused);
+
+		JsonReader in = gson.newJsonReader(reader);
+		JsonTranscoder transcoder = new JsonTranscoder(in);
+		List<ForkJoinTask<?>> compressing = new ArrayList<>();
+		in.beginObject();
+		while (in.peek() != JsonToken.END_OBJECT) {
+			String key = in.nextName();
+			int chunkPos = Integer.parseInt(key.substring(2));
+			if (KeyCodec.decode(key) == TagType.TAG_COMPOUND) {
+				ParsedChunk chunk = readChunk(in, transcoder, chunkPos);
+				if (parallel)
+					compressing.add(ForkJoinPool.commonPool().submit(() -> {
+						try {
+							chunk.addTo(file, chunk.nbt);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}));
+				else
+					chunk.addTo(file, transcoder.data);
+			} else if (keepUnusedData)
+				unused.put(chunkPos, ByteBuffer.wrap(ArrayCodec.readBytes(in.nextString())));
+			else
+				in.skipValue();
+		}
+		in.endObject();
+		checkConsumed(in);
+
+		try {
+			for (ForkJoinTask<?> task : compressing)
+				task.join();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return file;
+	}
+
+	/** Reads the fields of a chunk object. The nbt data stays in the transcoder's buffer, unless this converter is parallel. */
+	ParsedChunk readChunk(JsonReader in, JsonTranscoder transcoder, int chunkPos) throws IOException {
+		ParsedChunk chunk = new ParsedChunk(chunkPos);
+		transcoder.reset();
+		in.beginObject();
+		while (in.peek() != JsonToken.END_OBJECT) {
+			String key = in.nextName();
+			switch (KeyCodec.name(key)) {
+			case "index":
+				chunk.index = in.nextInt();
+				break;
+			case "timestamp":
+				chunk.timestamp = in.nextInt();
+				break;
+			case "compression":
+				chunk.compression = (byte) in.nextInt();
+				break;
+			case "chunk":
+				transcoder.transcodeCompound();
+				break;
+			case "unused":
+				if (keepUnusedData)
+					chunk.unused = ArrayCodec.readBytes(in.nextString());
+				else
+					in.skipValue();
+				break;
+			default:
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		if (chunk.index < 0 || chunk.index >= 1024)
+			throw new JsonIOException("Chunk at sector " + chunkPos + " has no valid index");
+		chunk.length = transcoder.size();
+		if (parallel)
+			chunk.nbt = transcoder.toByteArray();
+		return chunk;
+	}
+
+	class ParsedChunk {
+		final int	chunkPos;
+		int			index	= -1, timestamp;
+		byte		compression;
+		byte[]		nbt, unused;
+		int			length;
+
+		ParsedChunk(int chunkPos) {
+			this.chunkPos = chunkPos;
+		}
+
+		/** Compresses the chunk and puts it into the region. Every chunk writes to its own index, so this is safe to do concurrently. */
+		void addTo(RegionFile file, byte[] nbt) throws IOException {
+			ByteBuffer buffer = Compression.compressChunk(nbt, 0, length, compression, compressionLevel, unused);
+			file.chunks[index] = buffer;
+			file.locations2.put(index, chunkPos << 8 | ((buffer.capacity() >> 12) & 0xFF));
+			file.timestamps2.put(index, timestamp);
+		}
+	}
+
+	static void checkConsumed(JsonReader in) throws IOException {
+		if (in.peek() != JsonToken.END_DOCUMENT)
+			throw new JsonIOException("JSON document was not fully consumed.");
+	}
+
+	JsonWriter newJsonWriter(Writer writer) throws IOException {
+		/* Configured like Gson.newJsonWriter, and lenient because Gson.toJson does the same */
+		JsonWriter out = new ArrayCodec.StreamingJsonWriter(writer);
+		if (prettyPrinting)
+			out.setIndent("  ");
+		out.setSerializeNulls(gson.serializeNulls());
+		out.setLenient(true);
+		return out;
+	}
+
 	public RegionFile readNBT(CompoundTag in) throws IOException {
 		ByteBuffer locations, timestamps;
 		IntBuffer locations2, timestamps2;
@@ -87,6 +431,7 @@ public class Converter {
 		timestamps2 = timestamps.asIntBuffer();
 
 		Map<Integer, ByteBuffer> unused = new HashMap<>();
+		List<Entry<String, Tag<?>>> chunkTags = new ArrayList<>();
 
 		CompoundMap map = in.getValue();
 
@@ -94,39 +439,36 @@ public class Converter {
 			String name = entry.getKey();
 			int chunkPos = Integer.parseInt(name);
 			if (entry.getValue() instanceof CompoundTag) { // Actual chunk data
-				CompoundTag chunk = (CompoundTag) entry.getValue();
-				CompoundMap chunkMap = chunk.getValue();
-
-				int i = ((IntTag) chunkMap.get("index")).getValue();
-				int timestamp = ((IntTag) chunkMap.get("timestamp")).getValue();
-				byte compression = ((ByteTag) chunkMap.get("compression")).getValue();
-
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				NBTOutputStream s = new NBTOutputStream(new BufferedOutputStream(baos), compression);
-				s.writeTag(new CompoundTag("", ((CompoundTag) chunkMap.get("chunk")).getValue()));
-				s.flush();
-				s.close();
-
-				byte[] chunkData = baos.toByteArray();
-				int chunkLength = (int) Math.ceil((chunkData.length + 6) / 4096d);
-				chunks[i] = ByteBuffer.allocate(chunkLength << 12);
-				chunks[i].putInt(chunkData.length + 1);
-				chunks[i].put(compression);
-				chunks[i].put(chunkData);
-
-				if (keepUnusedData && chunkMap.containsKey("unused"))
-					chunks[i].put((byte[]) chunkMap.get("unused").getValue());
-
-				chunks[i].flip();
-
-				locations2.put(i, chunkPos << 8 | (chunkLength & 0xFF));
-				timestamps2.put(i, timestamp);
-
+				chunkTags.add(entry);
 			} else if (keepUnusedData) { // Unused data
 				ByteBuffer value = ByteBuffer.wrap((byte[]) entry.getValue().getValue());
 				unused.put(chunkPos, value);
 			}
 		}
+
+		forEach(chunkTags.size(), j -> {
+			int chunkPos = Integer.parseInt(chunkTags.get(j).getKey());
+			CompoundMap chunkMap = ((CompoundTag) chunkTags.get(j).getValue()).getValue();
+
+			int i = ((IntTag) chunkMap.get("index")).getValue();
+			int timestamp = ((IntTag) chunkMap.get("timestamp")).getValue();
+			byte compression = ((ByteTag) chunkMap.get("compression")).getValue();
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (NBTOutputStream s = new NBTOutputStream(baos, NBTInputStream.NO_COMPRESSION)) {
+				s.writeTag(new CompoundTag("", ((CompoundTag) chunkMap.get("chunk")).getValue()));
+			}
+			byte[] nbt = baos.toByteArray();
+
+			byte[] unusedData = keepUnusedData && chunkMap.containsKey("unused") ? (byte[]) chunkMap.get("unused").getValue() : null;
+			ByteBuffer buffer = Compression.compressChunk(nbt, 0, nbt.length, compression, compressionLevel, unusedData);
+			int chunkLength = buffer.capacity() >> 12;
+
+			/* Every chunk writes to its own index, so this is safe to do concurrently */
+			chunks[i] = buffer;
+			locations2.put(i, chunkPos << 8 | (chunkLength & 0xFF));
+			timestamps2.put(i, timestamp);
+		});
 		return new RegionFile(locations, timestamps, chunks, unused);
 	}
 
@@ -134,48 +476,117 @@ public class Converter {
 		CompoundMap map = new CompoundMap();
 		CompoundTag ret = new CompoundTag("", map);
 
-		for (int i = 0; i < 1024; i++) {
-			int chunkPos = file.locations2.get(i) >>> 8;
-			int chunkLength = file.locations2.get(i) & 0xFF;
-			int timestamp = file.timestamps2.get(i);
+		CompoundTag[] chunks = new CompoundTag[1024];
+		forEach(1024, i -> {
+			if (file.chunks[i] != null)
+				chunks[i] = writeChunk(file, i);
+		});
+		/* Assemble in index order so that the output does not depend on the scheduling */
+		for (CompoundTag chunk : chunks)
+			if (chunk != null)
+				map.put(chunk.getName(), chunk);
 
-			if (file.chunks[i] != null) {
-				CompoundMap chunkMap = new CompoundMap();
-				CompoundTag chunk = new CompoundTag(Integer.toString(chunkPos), chunkMap);
-				map.put(Integer.toString(chunkPos), chunk);
+		if (file.unused != null && keepUnusedData)
+			for (Entry<Integer, ByteBuffer> e : file.unused.entrySet()) {
+				map.put(String.valueOf(e.getKey()), new ByteArrayTag(String.valueOf(e.getKey()), sectorData(e.getValue())));
+			}
 
-				chunkMap.put("index", new IntTag("index", i));
-				chunkMap.put("timestamp", new IntTag("timestamp", timestamp));
+		return ret;
+	}
 
-				ByteBuffer data = file.chunks[i];
-				int realChunkLength = data.getInt() - 1;
-				byte compression = data.get();
-				chunkMap.put("compression", new ByteTag("compression", compression));
+	CompoundTag writeChunk(RegionFile file, int i) throws IOException {
+		int chunkPos = file.locations2.get(i) >>> 8;
+		int timestamp = file.timestamps2.get(i);
 
-				NBTInputStream nbtIn = new NBTInputStream(new ByteArrayInputStream(data.array(), 5, realChunkLength), compression);
-				chunkMap.put("chunk", new CompoundTag("chunk", ((CompoundTag) nbtIn.readTag()).getValue()));
+		CompoundMap chunkMap = new CompoundMap();
+		CompoundTag chunk = new CompoundTag(Integer.toString(chunkPos), chunkMap);
 
-				nbtIn.close();
+		chunkMap.put("index", new IntTag("index", i));
+		chunkMap.put("timestamp", new IntTag("timestamp", timestamp));
 
-				if (keepUnusedData) {
-					byte[] unusedData = new byte[(chunkLength << 12) - realChunkLength - 5];
-					System.arraycopy(data.array(), realChunkLength + 5, unusedData, 0, unusedData.length);
-					chunkMap.put("unused", new ByteArrayTag("unused", unusedData));
-				}
-			}
+		chunkMap.put("compression", new ByteTag("compression", file.chunks[i].get(4)));
+		chunkMap.put("chunk", new CompoundTag("chunk", file.readChunk(i).getValue()));
+
+		if (keepUnusedData)
+			chunkMap.put("unused", new ByteArrayTag("unused", unusedData(file, i)));
+		return chunk;
+	}
+
+	/**
+	 * Writes the same json as {@link #writeChunk(RegionFile, int)}, but transcodes the chunk's nbt directly from the given stream of the decompressed
+	 * data.
+	 */
+	void writeChunk(RegionFile file, int i, InputStream nbt, JsonWriter out) throws IOException {
+		out.beginObject();
+		out.name(KeyCodec.encode("index", TagType.TAG_INT));
+		out.value(i);
+		out.name(KeyCodec.encode("timestamp", TagType.TAG_INT));
+		out.value(file.timestamps2.get(i));
+		out.name(KeyCodec.encode("compression", TagType.TAG_BYTE));
+		out.value(file.chunks[i].get(4));
+		out.name(KeyCodec.encode("chunk", TagType.TAG_COMPOUND));
+		new NBTTranscoder(nbt, out, hexArrays).transcodeCompound();
+		if (keepUnusedData) {
+			out.name(KeyCodec.encode("unused", TagType.TAG_BYTE_ARRAY));
+			ArrayCodec.write(out, unusedData(file, i));
 		}
+		out.endObject();
+	}
 
-		if (file.unused != null && keepUnusedData)
-			for (Entry<Integer, ByteBuffer> e : file.unused.entrySet()) {
-				map.put(String.valueOf(e.getKey()), new ByteArrayTag(String.valueOf(e.getKey()), e.getValue().array()));
-			}
+	/** The data in the chunk's sectors after its end */
+	static byte[] unusedData(RegionFile file, int i) {
+		int chunkLength = file.locations2.get(i) & 0xFF;
+		/* Work on a duplicate with the whole capacity, the chunk might be a read-only slice of a mapped file */
+		ByteBuffer data = file.chunks[i].duplicate();
+		data.clear();
+		int realChunkLength = data.getInt(0) - 1;
+		byte[] unusedData = new byte[(chunkLength << 12) - realChunkLength - 5];
+		/* Anything beyond the end of the file is treated as zeroes */
+		data.position(realChunkLength + 5);
+		data.get(unusedData, 0, Math.min(unusedData.length, data.remaining()));
+		return unusedData;
+	}
 
-		return ret;
+	/**
+	 * Returns the content of an unused sector. Sectors that are slices of a whole file are copied and padded with zeroes to the full sector size if the
+	 * file was truncated.
+	 */
+	static byte[] sectorData(ByteBuffer sector) {
+		if (sector.hasArray() && sector.arrayOffset() == 0 && sector.array().length == sector.capacity())
+			return sector.array();
+		byte[] data = new byte[4096];
+		ByteBuffer source = sector.duplicate();
+		source.clear();
+		source.get(data, 0, Math.min(data.length, source.remaining()));
+		return data;
+	}
+
+	/** Runs the action for all indices from 0 to {@code count}, in parallel if {@link #parallel} is set. */
+	void forEach(int count, ChunkAction action) throws IOException {
+		IntStream range = IntStream.range(0, count);
+		if (parallel)
+			range = range.parallel();
+		try {
+			range.forEach(i -> {
+				try {
+					action.accept(i);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@FunctionalInterface
+	static interface ChunkAction {
+		void accept(int index) throws IOException;
 	}
 
 	void write(JsonWriter out, Tag<?> nbt, String name, boolean writeName) throws IOException {
 		if (nbt.getType() != TagType.TAG_LIST && name != null && writeName)
-			out.name(encode(name, nbt.getType()));
+			out.name(KeyCodec.encode(name, nbt.getType()));
 
 		switch (nbt.getType()) {
 		case TAG_BYTE:
@@ -200,32 +611,23 @@ public class Converter {
 			out.value(((StringTag) nbt).getValue());
 			break;
 		case TAG_BYTE_ARRAY:
-			out.value(Base64.getEncoder().encodeToString((byte[]) nbt.getValue()));
+			ArrayCodec.write(out, (byte[]) nbt.getValue());
 			break;
-		case TAG_INT_ARRAY: {
-			int[] data = (int[]) nbt.getValue();
-			ByteBuffer byteBuffer = ByteBuffer.allocate(data.length * 4);
-			IntBuffer intBuffer = byteBuffer.asIntBuffer();
-			intBuffer.put(data);
-			out.value(Base64.getEncoder().encodeToString(byteBuffer.array()));
+		case TAG_INT_ARRAY:
+			if (hexArrays)
+				ArrayCodec.writeHex(out, (int[]) nbt.getValue());
+			else
+				ArrayCodec.write(out, (int[]) nbt.getValue());
 			break;
-		}
-		case TAG_SHORT_ARRAY: {
-			short[] data = (short[]) nbt.getValue();
-			ByteBuffer byteBuffer = ByteBuffer.allocate(data.length * 2);
-			ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
-			shortBuffer.put(data);
-			out.value(Base64.getEncoder().encodeToString(byteBuffer.array()));
+		case TAG_SHORT_ARRAY:
+			ArrayCodec.write(out, (short[]) nbt.getValue());
 			break;
-		}
-		case TAG_LONG_ARRAY: {
-			long[] data = (long[]) nbt.getValue();
-			ByteBuffer byteBuffer = ByteBuffer.allocate(data.length * 8);
-			LongBuffer longBuffer = byteBuffer.asLongBuffer();
-			longBuffer.put(data);
-			out.value(Base64.getEncoder().encodeToString(byteBuffer.array()));
+		case TAG_LONG_ARRAY:
+			if (hexArrays)
+				ArrayCodec.writeHex(out, (long[]) nbt.getValue());
+			else
+				ArrayCodec.write(out, (long[]) nbt.getValue());
 			break;
-		}
 		case TAG_COMPOUND: {
 			CompoundMap map = ((CompoundTag) nbt).getValue();
 			out.beginObject();
@@ -241,9 +643,9 @@ public class Converter {
 			@SuppressWarnings("unchecked")
 			ListTag<Tag<?>> list = (ListTag<Tag<?>>) nbt;
 			if (writeName)
-				out.name(encode(name, TagType.TAG_LIST));
+				out.name(KeyCodec.encode(name, TagType.TAG_LIST));
 			out.beginArray();
-			out.value(encode("", TagType.getByTagClass(list.getElementType())));
+			out.value(KeyCodec.encode("", TagType.getByTagClass(list.getElementType())));
 			for (Tag<?> tag : list.getValue())
 				write(out, tag, "", false);
 			out.endArray();
@@ -279,35 +681,23 @@ public class Converter {
 		case TAG_STRING:
 			return new StringTag(name, in.nextString());
 		case TAG_BYTE_ARRAY:
-			return new ByteArrayTag(name, Base64.getDecoder().decode(in.nextString()));
-		case TAG_INT_ARRAY: {
-			IntBuffer intBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(in.nextString())).asIntBuffer();
-			int[] array = new int[intBuffer.remaining()];
-			intBuffer.get(array);
-			return new IntArrayTag(name, array);
-		}
-		case TAG_SHORT_ARRAY: {
-			ShortBuffer shortBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(in.nextString())).asShortBuffer();
-			short[] array = new short[shortBuffer.remaining()];
-			shortBuffer.get(array);
-			return new ShortArrayTag(name, array);
-		}
-		case TAG_LONG_ARRAY: {
-			LongBuffer longBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(in.nextString())).asLongBuffer();
-			long[] array = new long[longBuffer.remaining()];
-			longBuffer.get(array);
-			return new LongArrayTag(name, array);
-		}
+			return new ByteArrayTag(name, ArrayCodec.readBytes(in.nextString()));
+		case TAG_INT_ARRAY:
+			return new IntArrayTag(name, in.peek() == JsonToken.BEGIN_ARRAY ? ArrayCodec.readHexInts(in) : ArrayCodec.readInts(in.nextString()));
+		case TAG_SHORT_ARRAY:
+			return new ShortArrayTag(name, ArrayCodec.readShorts(in.nextString()));
+		case TAG_LONG_ARRAY:
+			return new LongArrayTag(name, in.peek() == JsonToken.BEGIN_ARRAY ? ArrayCodec.readHexLongs(in) : ArrayCodec.readLongs(in.nextString()));
 		case TAG_COMPOUND: {
 			CompoundMap map = new CompoundMap();
 			CompoundTag compound = new CompoundTag(name, map);
 			in.beginObject();
 			while (in.peek() != JsonToken.END_OBJECT) {
 				String key = in.nextName();
-				TagType t = decode(key);
+				TagType t = KeyCodec.decode(key);
 				if (t == TagType.TAG_END)
 					break;
-				key = key.substring(2);
+				key = KeyCodec.name(key);
 				map.put(read(in, key, t));
 			}
 			in.endObject();
@@ -316,7 +706,7 @@ public class Converter {
 		case TAG_LIST: {
 			List<Tag<?>> tags = new LinkedList<>();
 			in.beginArray();
-			TagType listType = decode(in.nextString());
+			TagType listType = KeyCodec.decode(in.nextString());
 			while (in.peek() != JsonToken.END_ARRAY)
 				tags.add(read(in, "", listType));
 			in.endArray();
@@ -328,12 +718,4 @@ public class Converter {
 			throw new Error();
 		}
 	}
-
-	static TagType decode(String key) {
-		return TagType.getById(Integer.parseInt(key.substring(0, 2), 16));
-	}
-
-	static String encode(String key, TagType type) {
-		return String.format("%02x", type.getId()) + key;
-	}
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package de.piegames.mctext;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer that counts the characters written through it. After calling {@link #mark()}, it remembers the position of the next opening brace, which
+ * is where the next json object value starts.
+ */
+class CountingWriter extends FilterWriter {
+
+	protected long		position;
+	protected long		objectStart	= -1;
+	protected boolean	marked;
+
+	public CountingWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		out.write(c);
+		if (marked && c == '{')
+			found(0);
+		position++;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		out.write(cbuf, off, len);
+		if (marked)
+			for (int i = 0; i < len; i++)
+				if (cbuf[off + i] == '{') {
+					found(i);
+					break;
+				}
+		position += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		out.write(str, off, len);
+		if (marked) {
+			int i = str.indexOf('{', off);
+			if (i >= 0 && i < off + len)
+				found(i - off);
+		}
+		position += len;
+	}
+
+	private void found(int offset) {
+		objectStart = position + offset;
+		marked = false;
+	}
+
+	/** Start looking for the next opening brace */
+	public void mark() {
+		marked = true;
+		objectStart = -1;
+	}
+
+	/** The position of the first opening brace written after the last call to {@link #mark()}, or -1 if there was none */
+	public long getObjectStart() {
+		return objectStart;
+	}
+
+	/** The number of characters written so far */
+	public long getPosition() {
+		return position;
+	}
+}
@@ -2,13 +2,16 @@ package de.piegames.mctext;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
+import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.RmCommand;
 import org.eclipse.jgit.api.errors.CheckoutConflictException;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidRefNameException;
@@ -20,28 +23,17 @@ import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
 public class GitBackup {
 
+	/**
+	 * Insert the converted files directly into the object database and build the commit in memory, instead of writing them into the working tree and
+	 * staging them from there. The working tree and the index are not touched.
+	 */
+	public boolean	direct;
+
 	public GitBackup() {
 	}
 
-	private void unzip(Path compressed, Path destination) throws IOException {
-		byte[] buffer = new byte[1024];
-		ZipInputStream zis = new ZipInputStream(Files.newInputStream(compressed));
-		ZipEntry zipEntry = zis.getNextEntry();
-		while (zipEntry != null) {
-			String fileName = zipEntry.getName();
-			Path path = destination.resolve(fileName);
-			System.out.println("Unpacking " + fileName + " to " + path);
-			Files.createDirectories(path.getParent());
-			OutputStream fos = Files.newOutputStream(path);
-			int len;
-			while ((len = zis.read(buffer)) > 0) {
-				fos.write(buffer, 0, len);
-			}
-			fos.close();
-			zipEntry = zis.getNextEntry();
-		}
-		zis.closeEntry();
-		zis.close();
+	public GitBackup(boolean direct) {
+		this.direct = direct;
 	}
 
 	static Git openOrCreate(Path gitDirectory) throws IOException, GitAPIException {
@@ -51,6 +43,9 @@ public class GitBackup {
 		repositoryBuilder.findGitDir(gitDirectory.resolve(".git").toFile());
 		if (repositoryBuilder.getGitDir() == null) {
 			git = Git.init().setDirectory(gitDirectory.toFile()).call();
+			/* The chunk indices of incremental backups are binary and change every time */
+			Files.write(gitDirectory.resolve(Constants.GITIGNORE_FILENAME), (ChunkIndex.FOLDER + "/\n").getBytes(StandardCharsets.UTF_8));
+			git.add().addFilepattern(Constants.GITIGNORE_FILENAME).call();
 		} else {
 			git = new Git(repositoryBuilder.build());
 		}
@@ -70,7 +65,19 @@ public class GitBackup {
 		System.out.println(path + " -> " + gitPath);
 
 		try (Git git = openOrCreate(gitPath)) {
-			Path unpacked = Files.createTempDirectory(backupZip.getName());
+			if (direct) {
+				System.out.println("Convert world");
+				GitBackupHelper backup = new GitBackupHelper(new Converter(true, false), git.getRepository(), "world/");
+				try {
+					backup.backupWorld(path);
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+					return;
+				}
+				System.out.println("Committing");
+				backup.commit("backup", "Backup " + backupZip.getName());
+				return;
+			}
 
 			System.out.println("Check out branch");
 			try {
@@ -79,27 +86,57 @@ public class GitBackup {
 				git.checkout().setName("backup").call();
 			}
 
-			System.err.println("Unpacking to " + unpacked);
-			unzip(path, unpacked);
-
 			System.out.println("Convert world");
 			BackupHelper backup = new BackupHelper(true, false, false, 1, false, true, false, false, true);
 			Path world = gitPath.resolve("world");
 			if (!Files.exists(world))
 				Files.createDirectory(world);
 			try {
-				backup.backupWorld(unpacked, world);
+				/* The files are converted directly out of the archive */
+				backup.backupWorld(path, world);
 			} catch (IOException | RuntimeException e) {
 				e.printStackTrace();
 				return;
 			}
-			System.out.println("Staging files");
-			git.add().addFilepattern(".").call();
+			System.out.println("Staging " + backup.writtenFiles.size() + " changed and " + backup.deletedFiles.size() + " deleted files");
+			stage(git, gitPath, backup.writtenFiles, backup.deletedFiles);
 			System.out.println("Committing");
 			git.commit().setMessage("Backup " + backupZip.getName()).call();
 		}
 	}
 
+	/**
+	 * Stages the given files instead of scanning the whole working tree for changes. Deleted folders are removed from the index with everything in
+	 * them, before the written files are added, so that files written into a deleted folder are staged again. Files outside of the working tree are
+	 * not staged, so a {@link BackupHelper#chunkStore} outside of the repository does not get committed.
+	 */
+	static void stage(Git git, Path workTree, Collection<Path> written, Collection<Path> deleted) throws GitAPIException {
+		Path root = workTree.toAbsolutePath().normalize();
+		List<String> removed = patterns(root, deleted);
+		if (!removed.isEmpty()) {
+			RmCommand rm = git.rm().setCached(true);
+			removed.forEach(rm::addFilepattern);
+			rm.call();
+		}
+		List<String> added = patterns(root, written);
+		if (!added.isEmpty()) {
+			AddCommand add = git.add();
+			added.forEach(add::addFilepattern);
+			add.call();
+		}
+	}
+
+	/** The paths of the files relative to the root, leaving out those outside of it */
+	private static List<String> patterns(Path root, Collection<Path> files) {
+		List<String> patterns = new ArrayList<>();
+		for (Path file : files) {
+			file = file.toAbsolutePath().normalize();
+			if (file.startsWith(root))
+				patterns.add(Manifest.key(root.relativize(file)));
+		}
+		return patterns;
+	}
+
 	public static void main(String[] args) throws Exception {
 		new GitBackup().onBackup(new File("/run/media/piegames/STEAM/backup/Backup--world--2018-6-14--22-4.zip"));
 		System.out.println("Graceful exit");
@@ -0,0 +1,137 @@
+package de.piegames.mctext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+/**
+ * Backs up worlds directly into the object database of a git repository, without a working tree or an index. Every converted file is inserted as
+ * blob by the worker thread that converted it, and {@link #commit(String, String)} builds the tree and the commit in memory afterwards.
+ */
+class GitBackupHelper extends BackupHelper {
+
+	/** The virtual destination folder. Nothing gets written there, the paths are only used to name the files in the tree */
+	static final Path				ROOT	= Paths.get("/");
+
+	protected final Repository		repository;
+	/** The folder in the tree that contains the world */
+	protected final String			prefix;
+	protected Map<String, ObjectId>	blobs	= new ConcurrentHashMap<>();
+
+	public GitBackupHelper(Converter converter, Repository repository, String prefix) {
+		super(converter, false, 1, false, true, false, false, false);
+		this.repository = repository;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Converts the world, the destination is ignored. {@link #splitRegions}, {@link #incremental} and {@link #chunkStore} are not supported, since they
+	 * work on the files in the destination.
+	 */
+	@Override
+	public void backupWorld(Path source, Path destination) throws IOException {
+		if (splitRegions || incremental || chunkStore != null)
+			throw new IllegalStateException("Split regions, incremental backups and chunk stores can't be used when backing up into git objects");
+		super.backupWorld(source, ROOT);
+	}
+
+	/** Backs up the world into the object database. Call {@link #commit(String, String)} to commit it afterwards. */
+	public void backupWorld(Path source) throws IOException {
+		backupWorld(source, ROOT);
+	}
+
+	@Override
+	protected OutputStream newOutputStream(Path file) throws IOException {
+		String path = prefix + Manifest.key(ROOT.relativize(file));
+		return new TemporaryBuffer.LocalFile(repository.getDirectory()) {
+
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				super.close();
+				try (ObjectInserter inserter = repository.newObjectInserter(); InputStream in = openInputStream()) {
+					blobs.put(path, inserter.insert(Constants.OBJ_BLOB, length(), in));
+					inserter.flush();
+				} finally {
+					destroy();
+				}
+			}
+		};
+	}
+
+	@Override
+	protected void createDirectories(Path dir) {
+		/* Git has no folders, they are implied by the paths of the files */
+	}
+
+	/**
+	 * Creates a commit containing all files that have been backed up since the last commit and points the branch to it. The previous commit of the
+	 * branch, or HEAD if the branch does not exist yet, will be its parent. Returns the id of the new commit.
+	 */
+	public ObjectId commit(String branch, String message) throws IOException {
+		String ref = Constants.R_HEADS + branch;
+		ObjectId previous = repository.resolve(ref);
+		ObjectId parent = previous != null ? previous : repository.resolve(Constants.HEAD);
+
+		DirCache tree = DirCache.newInCore();
+		DirCacheBuilder builder = tree.builder();
+		for (Entry<String, ObjectId> blob : blobs.entrySet()) {
+			DirCacheEntry entry = new DirCacheEntry(blob.getKey());
+			entry.setFileMode(FileMode.REGULAR_FILE);
+			entry.setObjectId(blob.getValue());
+			builder.add(entry);
+		}
+		builder.finish();
+
+		ObjectId commitId;
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(tree.writeTree(inserter));
+			if (parent != null)
+				commit.setParentId(parent);
+			PersonIdent ident = new PersonIdent(repository);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage(message);
+			commitId = inserter.insert(commit);
+			inserter.flush();
+		}
+
+		RefUpdate update = repository.updateRef(ref);
+		update.setNewObjectId(commitId);
+		update.setExpectedOldObjectId(previous == null ? ObjectId.zeroId() : previous);
+		update.setRefLogMessage("commit: " + message, false);
+		RefUpdate.Result result = update.update();
+		switch (result) {
+		case NEW:
+		case FAST_FORWARD:
+			break;
+		default:
+			throw new IOException("Could not update " + ref + ": " + result);
+		}
+		blobs = new ConcurrentHashMap<>();
+		return commitId;
+	}
+}
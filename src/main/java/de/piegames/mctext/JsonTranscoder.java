@@ -0,0 +1,225 @@
+package de.piegames.mctext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.flowpowered.nbt.TagType;
+import com.flowpowered.nbt.stream.NBTOutputStream;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Converts json to binary nbt while reading it, without building the tag tree in memory. The output is the same as writing the tag read by
+ * {@link Converter#readJson(java.io.Reader)} with an uncompressed {@link NBTOutputStream}. The nbt data is collected in a buffer, so that the lengths
+ * of lists can be filled in after their elements have been read. If there is an output stream, everything outside of lists is written to it as soon
+ * as the buffer is full, so only the outermost list that is currently being read needs to fit into memory. Otherwise, the buffer grows until it
+ * holds the whole tag.
+ */
+class JsonTranscoder {
+
+	protected final JsonReader		in;
+	protected final OutputStream	out;
+	protected byte[]				data	= new byte[8192];
+	protected int					size;
+	/** The number of lists that are currently being read and whose length still needs to be filled in */
+	protected int					pending;
+
+	/** Collects the nbt data in the buffer, see {@link #toByteArray()} */
+	public JsonTranscoder(JsonReader in) {
+		this(in, null);
+	}
+
+	/** Streams the nbt data to the output, see {@link #writeTo(OutputStream)} */
+	public JsonTranscoder(JsonReader in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	/** Reads a compound from the json and appends it to the buffer as root tag with an empty name */
+	public void transcodeCompound() throws IOException {
+		writeByte(TagType.TAG_COMPOUND.getId());
+		writeString("");
+		transcode(TagType.TAG_COMPOUND);
+	}
+
+	protected void transcode(TagType type) throws IOException {
+		switch (type) {
+		case TAG_BYTE:
+			writeByte(in.nextInt());
+			break;
+		case TAG_DOUBLE:
+			writeLong(Double.doubleToLongBits(in.nextDouble()));
+			break;
+		case TAG_FLOAT:
+			writeInt(Float.floatToIntBits((float) in.nextDouble()));
+			break;
+		case TAG_INT:
+			writeInt(in.nextInt());
+			break;
+		case TAG_LONG:
+			writeLong(in.nextLong());
+			break;
+		case TAG_SHORT:
+			writeShort(in.nextInt());
+			break;
+		case TAG_STRING:
+			writeString(in.nextString());
+			break;
+		case TAG_BYTE_ARRAY:
+			writeArray(in.nextString(), 1);
+			break;
+		case TAG_INT_ARRAY:
+			if (in.peek() == JsonToken.BEGIN_ARRAY)
+				writeHexArray(4);
+			else
+				writeArray(in.nextString(), 4);
+			break;
+		case TAG_SHORT_ARRAY:
+			writeArray(in.nextString(), 2);
+			break;
+		case TAG_LONG_ARRAY:
+			if (in.peek() == JsonToken.BEGIN_ARRAY)
+				writeHexArray(8);
+			else
+				writeArray(in.nextString(), 8);
+			break;
+		case TAG_COMPOUND: {
+			in.beginObject();
+			while (in.peek() != JsonToken.END_OBJECT) {
+				String key = in.nextName();
+				TagType t = KeyCodec.decode(key);
+				if (t == TagType.TAG_END)
+					break;
+				writeByte(t.getId());
+				writeString(KeyCodec.name(key));
+				transcode(t);
+			}
+			in.endObject();
+			writeByte(TagType.TAG_END.getId());
+			break;
+		}
+		case TAG_LIST: {
+			in.beginArray();
+			TagType listType = KeyCodec.decode(in.nextString());
+			writeByte(listType.getId());
+			int lengthPosition = beginLength();
+			int length = 0;
+			for (; in.peek() != JsonToken.END_ARRAY; length++)
+				transcode(listType);
+			in.endArray();
+			endLength(lengthPosition, length);
+			break;
+		}
+		case TAG_END:
+			break;
+		default:
+			throw new Error();
+		}
+	}
+
+	/** Writes the array length followed by the decoded data. Any incomplete element at the end is dropped. */
+	protected void writeArray(String base64, int elementSize) throws IOException {
+		int length = ArrayCodec.decodedLength(base64);
+		writeInt(length / elementSize);
+		ensureCapacity(length);
+		ArrayCodec.decode(base64, data, size);
+		size += length - length % elementSize;
+	}
+
+	/** Reads an array of hex words and writes its length followed by the words */
+	protected void writeHexArray(int wordSize) throws IOException {
+		int lengthPosition = beginLength();
+		int length = 0;
+		in.beginArray();
+		for (; in.hasNext(); length++)
+			if (wordSize == 8)
+				writeLong(Long.parseUnsignedLong(in.nextString(), 16));
+			else
+				writeInt(Integer.parseUnsignedInt(in.nextString(), 16));
+		in.endArray();
+		endLength(lengthPosition, length);
+	}
+
+	/** Writes a placeholder for a length that is not known yet and returns its position. Nothing will be written out until it is filled in. */
+	protected int beginLength() throws IOException {
+		pending++;
+		int position = size;
+		writeInt(0);
+		return position;
+	}
+
+	/** Fills in the length at the position returned by {@link #beginLength()} */
+	protected void endLength(int position, int length) throws IOException {
+		int end = size;
+		size = position;
+		writeInt(length);
+		size = end;
+		pending--;
+	}
+
+	protected void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeShort(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, data, size, bytes.length);
+		size += bytes.length;
+	}
+
+	protected void writeByte(int value) throws IOException {
+		ensureCapacity(1);
+		data[size++] = (byte) value;
+	}
+
+	protected void writeShort(int value) throws IOException {
+		ensureCapacity(2);
+		data[size++] = (byte) (value >>> 8);
+		data[size++] = (byte) value;
+	}
+
+	protected void writeInt(int value) throws IOException {
+		ensureCapacity(4);
+		data[size++] = (byte) (value >>> 24);
+		data[size++] = (byte) (value >>> 16);
+		data[size++] = (byte) (value >>> 8);
+		data[size++] = (byte) value;
+	}
+
+	protected void writeLong(long value) throws IOException {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	protected void ensureCapacity(int additional) throws IOException {
+		if (data.length - size >= additional)
+			return;
+		if (out != null && pending == 0) {
+			out.write(data, 0, size);
+			size = 0;
+			if (data.length >= additional)
+				return;
+		}
+		data = Arrays.copyOf(data, Math.max(size + additional, data.length * 2));
+	}
+
+	/** The nbt data written so far */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/** Writes the nbt data that is still in the buffer */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(data, 0, size);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Clears the buffer so that it can be reused for the next tag */
+	public void reset() {
+		size = 0;
+	}
+}
@@ -0,0 +1,93 @@
+package de.piegames.mctext;
+
+import com.flowpowered.nbt.TagType;
+
+/**
+ * Encodes tag names as json keys, which are prefixed with the tag type as two hex digits, and decodes them again. The same few hundred names appear
+ * over and over in a world, so the keys and names are cached and shared between all conversions. The caches are direct mapped: every name has one
+ * slot, and a new name replaces whatever was in it. One-off names like chunk positions thus only evict a common name until it is seen again, and
+ * the caches never grow beyond {@link #CACHE_SIZE} entries.
+ */
+final class KeyCodec {
+
+	/** The number of slots per cache, a power of two */
+	static final int				CACHE_SIZE	= 4096;
+
+	private static final String[]	PREFIXES	= new String[256];
+	private static final int[]		HEX_VALUES	= new int[128];
+	private static final TagType[]	TYPES		= new TagType[256];
+	/** Maps names and tag types to keys */
+	private static final Entry[]	ENCODED		= new Entry[CACHE_SIZE];
+	/** Maps keys to the names without the prefix */
+	private static final Entry[]	DECODED		= new Entry[CACHE_SIZE];
+
+	static {
+		for (int i = 0; i < 256; i++)
+			PREFIXES[i] = String.format("%02x", i);
+		for (int i = 0; i < HEX_VALUES.length; i++)
+			HEX_VALUES[i] = Character.digit(i, 16);
+		for (TagType type : TagType.values())
+			TYPES[type.getId()] = type;
+	}
+
+	private KeyCodec() {
+	}
+
+	/** The key for a tag of that type and name. For the type header of lists, the name is empty. */
+	static String encode(String name, TagType type) {
+		int id = type.getId();
+		if (name.isEmpty())
+			return PREFIXES[id];
+		int slot = slot(name.hashCode() * 31 + id);
+		Entry entry = ENCODED[slot];
+		if (entry != null && entry.id == id && entry.from.equals(name))
+			return entry.to;
+		String key = PREFIXES[id] + name;
+		ENCODED[slot] = new Entry(name, id, key);
+		return key;
+	}
+
+	/** The tag type of the key, or {@code null} for unknown ids */
+	static TagType decode(String key) {
+		int high = key.length() < 2 ? -1 : hexValue(key.charAt(0));
+		int low = high < 0 ? -1 : hexValue(key.charAt(1));
+		if (low < 0)
+			throw new NumberFormatException("Invalid tag type in key: \"" + key + "\"");
+		return TYPES[high << 4 | low];
+	}
+
+	private static int hexValue(char c) {
+		return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+	}
+
+	/** The name of the key without the type prefix. Names from the cache are shared, so that equal names in restored trees are the same instance. */
+	static String name(String key) {
+		int slot = slot(key.hashCode());
+		Entry entry = DECODED[slot];
+		if (entry != null && entry.from.equals(key))
+			return entry.to;
+		String name = key.substring(2);
+		DECODED[slot] = new Entry(key, 0, name);
+		return name;
+	}
+
+	private static int slot(int hash) {
+		return (hash ^ hash >>> 16) & (CACHE_SIZE - 1);
+	}
+
+	/**
+	 * A cached mapping. The slots are written without synchronization, which is fine because the fields are final: other threads either see a
+	 * complete entry or an older one.
+	 */
+	private static class Entry {
+		final String	from;
+		final int		id;
+		final String	to;
+
+		Entry(String from, int id, String to) {
+			this.from = from;
+			this.id = id;
+			this.to = to;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package de.piegames.mctext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Keeps track of the files that have been converted into a destination folder, so that repeated conversions can reliably skip unchanged files. For
+ * every source file, its size, modification time, a hash of its content and the options used to convert it are stored. The manifest is saved as json
+ * file in the root of the destination folder.
+ */
+class Manifest {
+
+	public static final String	FILE_NAME	= ".mctext-manifest.json";
+
+	static final Gson			GSON		= new Gson();
+
+	static class FileEntry {
+		long	size;
+		long	modified;
+		long	hash;
+		String	options;
+
+		FileEntry() {
+		}
+
+		FileEntry(long size, long modified, long hash, String options) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.options = options;
+		}
+	}
+
+	/** Maps the relative path of each source file, using '/' as separator, to its state when it was last converted */
+	ConcurrentMap<String, FileEntry>				files	= new ConcurrentHashMap<>();
+	/** All files that were seen in the source during the current run, with their attributes at that time */
+	transient Map<String, BasicFileAttributes>		visited	= new ConcurrentHashMap<>();
+
+	/** The hash of the file that is currently being converted on this thread, computed while the conversion reads it */
+	private static final ThreadLocal<ContentHash>	CURRENT	= new ThreadLocal<>();
+
+	/** Loads the manifest from the given folder, or returns an empty one if there is none. */
+	public static Manifest load(Path folder) throws IOException {
+		Path file = folder.resolve(FILE_NAME);
+		if (!Files.exists(file))
+			return new Manifest();
+		try (Reader reader = BackupHelper.newReader(file)) {
+			Manifest manifest = GSON.fromJson(reader, Manifest.class);
+			if (manifest == null || manifest.files == null)
+				return new Manifest();
+			return manifest;
+		} catch (JsonParseException e) {
+			BackupHelper.log.warn("Could not read " + file + ", all files will be converted again", e);
+			return new Manifest();
+		}
+	}
+
+	/** Saves the manifest to the given folder, replacing the old one. */
+	public void save(Path folder) throws IOException {
+		Path tmp = folder.resolve(FILE_NAME + ".tmp");
+		try (Writer writer = BackupHelper.newWriter(tmp)) {
+			GSON.toJson(this, writer);
+		}
+		Files.move(tmp, folder.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Marks the file as still existing in the source and remembers its attributes for {@link #update(String, long, String)}. */
+	public void visit(String key, BasicFileAttributes attrs) {
+		visited.put(key, attrs);
+	}
+
+	/**
+	 * Checks if the file did not change since it was last converted with the same options. If only the modification time changed, the content hash is
+	 * compared and the new time is remembered if it matches.
+	 */
+	public boolean isUpToDate(String key, Path file, BasicFileAttributes attrs, String options) throws IOException {
+		FileEntry entry = files.get(key);
+		if (entry == null || !Objects.equals(entry.options, options) || entry.size != attrs.size())
+			return false;
+		long modified = attrs.lastModifiedTime().toMillis();
+		/* The time of a folder does not change if one of its files gets modified */
+		if (entry.modified == modified && !attrs.isDirectory())
+			return true;
+		if (entry.hash != hash(file))
+			return false;
+		entry.modified = modified;
+		return true;
+	}
+
+	/** Forgets the file, it has to be converted again on the next run unless it gets updated. */
+	public void invalidate(String key) {
+		files.remove(key);
+	}
+
+	/**
+	 * Remembers the state of the file after it has been converted successfully. Size and modification time are the ones from when it was visited,
+	 * before it got hashed. If the file changes while being converted, the next run will see a newer modification time and compare the hashes.
+	 */
+	public void update(String key, long hash, String options) {
+		BasicFileAttributes attrs = visited.get(key);
+		if (attrs == null)
+			throw new IllegalStateException(key + " has not been visited");
+		files.put(key, new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash, options));
+	}
+
+	/** Removes all files that have not been visited during this run and returns their keys. */
+	public List<String> removeUnvisited() {
+		List<String> removed = new ArrayList<>();
+		for (String key : files.keySet())
+			if (!visited.containsKey(key)) {
+				files.remove(key);
+				removed.add(key);
+			}
+		Collections.sort(removed);
+		return removed;
+	}
+
+	/** Returns the relative path as manifest key, which is independent of the file system's separator. */
+	public static String key(Path relative) {
+		StringJoiner joiner = new StringJoiner("/");
+		for (Path name : relative)
+			joiner.add(name.toString());
+		return joiner.toString();
+	}
+
+	/**
+	 * Starts hashing the file on this thread while it is being converted. All streams opened with {@link #hashing(Path, InputStream)} and buffers passed
+	 * to {@link #hashing(Path, ByteBuffer)} for this file until {@link ContentHash#close()} contribute to the hash.
+	 */
+	public static ContentHash startHash(Path file) {
+		ContentHash hash = new ContentHash(file);
+		CURRENT.set(hash);
+		return hash;
+	}
+
+	/** Adds everything read from the stream to the hash of the file, if it is being hashed on this thread */
+	static InputStream hashing(Path file, InputStream in) {
+		ContentHash hash = CURRENT.get();
+		if (hash == null || !hash.file.equals(file))
+			return in;
+		return new CheckedInputStream(in, hash.crc) {
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					hash.bytes++;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				int n = super.read(buf, off, len);
+				if (n > 0)
+					hash.bytes += n;
+				return n;
+			}
+		};
+	}
+
+	/** Adds the whole content of the file to its hash, if it is being hashed on this thread */
+	static void hashing(Path file, ByteBuffer data) {
+		ContentHash hash = CURRENT.get();
+		if (hash == null || !hash.file.equals(file))
+			return;
+		ByteBuffer content = data.duplicate();
+		content.clear();
+		hash.crc.update(content);
+		hash.bytes += content.capacity();
+	}
+
+	/**
+	 * The hash of a file, computed from the data that the conversion read anyway. This is only possible if the conversion read each byte exactly once
+	 * in order, otherwise the file gets read again by {@link #hash(Path)}.
+	 */
+	static class ContentHash implements AutoCloseable {
+		final Path	file;
+		final CRC32	crc	= new CRC32();
+		long		bytes;
+
+		ContentHash(Path file) {
+			this.file = file;
+		}
+
+		/** The hash of the file's content, given its size when the conversion started */
+		public long value(long size) throws IOException {
+			if (bytes == size && !Files.isDirectory(file))
+				return crc.getValue();
+			return hash(file);
+		}
+
+		@Override
+		public void close() {
+			CURRENT.remove();
+		}
+	}
+
+	/** A fast, non-cryptographic hash of the file's content. For folders, the names and contents of all files within are hashed. */
+	public static long hash(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BackupHelper.BUFFER_SIZE];
+		List<Path> files = new ArrayList<>();
+		if (Files.isDirectory(file))
+			try (Stream<Path> stream = Files.list(file)) {
+				stream.sorted().forEach(files::add);
+			}
+		else
+			files.add(file);
+		for (Path f : files) {
+			if (f != file)
+				crc.update(f.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+			try (InputStream in = Files.newInputStream(f)) {
+				int read;
+				while ((read = in.read(buffer)) > 0)
+					crc.update(buffer, 0, read);
+			}
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,372 @@
+package de.piegames.mctext;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Collects where the time of a conversion goes, per file and in total. Every file is converted by one thread, which gets a {@link Recorder} bound to
+ * it while doing so. The streams and the compression code switch the {@link Phase} of the current thread, and the time between two switches is
+ * added to the phase that was active. Work that is done on other threads (e.g. with parallel chunks) is not attributed to any phase, but the file
+ * thread waiting for it counts as {@link Phase#CONVERT}. If no recorder is bound to the thread, all of this does nothing.
+ */
+public class Metrics {
+
+	public static enum Phase {
+		/** Reading the source files */
+		READ,
+		/** Decompressing nbt data */
+		INFLATE,
+		/** Parsing and writing nbt and json. The transcoders do both at the same time, so they are measured together. */
+		CONVERT,
+		/** Compressing nbt data */
+		DEFLATE,
+		/** Writing the destination files */
+		WRITE;
+	}
+
+	private static final ThreadLocal<Recorder>	CURRENT			= new ThreadLocal<>();
+
+	protected String							action;
+	protected Path								source, destination;
+	protected long								startTime		= System.currentTimeMillis();
+	/** While the source is walked, the expected numbers are still growing and the total is not known yet */
+	protected volatile boolean					walking;
+
+	protected final LongAdder					expectedFiles	= new LongAdder();
+	protected final LongAdder					expectedBytes	= new LongAdder();
+	protected final LongAdder					convertedFiles	= new LongAdder();
+	protected final LongAdder					convertedBytes	= new LongAdder();
+	protected final LongAdder					skippedFiles	= new LongAdder();
+	protected final LongAdder					failedFiles		= new LongAdder();
+	protected final LongAdder					bytesRead		= new LongAdder();
+	protected final LongAdder					bytesWritten	= new LongAdder();
+	protected final LongAdder					chunks			= new LongAdder();
+	protected final LongAdder[]					phaseNanos		= new LongAdder[Phase.values().length];
+	protected final List<FileReport>			files			= Collections.synchronizedList(new ArrayList<>());
+
+	public Metrics() {
+		for (int i = 0; i < phaseNanos.length; i++)
+			phaseNanos[i] = new LongAdder();
+	}
+
+	/** Clears everything and starts measuring a new conversion */
+	public synchronized void start(String action, Path source, Path destination) {
+		this.action = action;
+		this.source = source;
+		this.destination = destination;
+		startTime = System.currentTimeMillis();
+		walking = false;
+		for (LongAdder adder : new LongAdder[] { expectedFiles, expectedBytes, convertedFiles, convertedBytes, skippedFiles, failedFiles, bytesRead,
+				bytesWritten, chunks })
+			adder.reset();
+		for (LongAdder adder : phaseNanos)
+			adder.reset();
+		files.clear();
+	}
+
+	/** Marks the start of walking the source. Until {@link #endWalk()}, the progress will not estimate the total. */
+	public void beginWalk() {
+		walking = true;
+	}
+
+	/** All files have been announced with {@link #expect(long)} */
+	public void endWalk() {
+		walking = false;
+	}
+
+	/** Announces a file that will be converted, for the progress estimation */
+	public void expect(long size) {
+		expectedFiles.increment();
+		expectedBytes.add(size);
+	}
+
+	/** Counts a file that did not need to be converted */
+	public void skipped() {
+		skippedFiles.increment();
+	}
+
+	/** Starts recording the conversion of a file on this thread. Must be followed by {@link #end(Recorder, boolean)} on the same thread. */
+	public Recorder begin(Path file, long size) {
+		Recorder recorder = new Recorder(file, size, CURRENT.get());
+		CURRENT.set(recorder);
+		recorder.phase = Phase.CONVERT;
+		recorder.since = recorder.start = System.nanoTime();
+		return recorder;
+	}
+
+	/** Stops recording the conversion of the file and adds its numbers to the total */
+	public void end(Recorder recorder, boolean success) {
+		long now = System.nanoTime();
+		recorder.nanos[recorder.phase.ordinal()] += now - recorder.since;
+		CURRENT.set(recorder.outer);
+
+		(success ? convertedFiles : failedFiles).increment();
+		convertedBytes.add(recorder.size);
+		bytesRead.add(recorder.bytesRead);
+		bytesWritten.add(recorder.bytesWritten);
+		chunks.add(recorder.chunks);
+		for (int i = 0; i < phaseNanos.length; i++)
+			phaseNanos[i].add(recorder.nanos[i]);
+		files.add(new FileReport(recorder, success, now - recorder.start));
+	}
+
+	/**
+	 * Switches the current thread to the given phase and returns the previous one, which must be passed to {@link #exit(Phase)} afterwards. Returns
+	 * {@code null} if nothing is recorded on this thread.
+	 */
+	public static Phase enter(Phase phase) {
+		Recorder recorder = CURRENT.get();
+		if (recorder == null)
+			return null;
+		Phase previous = recorder.phase;
+		if (previous != phase) {
+			long now = System.nanoTime();
+			recorder.nanos[previous.ordinal()] += now - recorder.since;
+			recorder.phase = phase;
+			recorder.since = now;
+		}
+		return previous;
+	}
+
+	/** Switches back to the phase returned by {@link #enter(Phase)} */
+	public static void exit(Phase previous) {
+		if (previous != null)
+			enter(previous);
+	}
+
+	/** Counts chunks that have been converted on this thread */
+	public static void chunks(int count) {
+		Recorder recorder = CURRENT.get();
+		if (recorder != null)
+			recorder.chunks += count;
+	}
+
+	/** Counts bytes of a file read on this thread without going through {@link #time(InputStream, Phase)}, e.g. because it got mapped */
+	public static void countRead(long bytes) {
+		Recorder recorder = CURRENT.get();
+		if (recorder != null)
+			recorder.bytesRead += bytes;
+	}
+
+	/** Counts bytes written on this thread without going through {@link #time(OutputStream, Phase)} */
+	public static void countWritten(long bytes) {
+		Recorder recorder = CURRENT.get();
+		if (recorder != null)
+			recorder.bytesWritten += bytes;
+	}
+
+	/** Attributes the time spent reading from the stream to the phase. Bytes read with {@link Phase#READ} are counted as read from the source. */
+	public static InputStream time(InputStream in, Phase phase) {
+		return new FilterInputStream(in) {
+
+			@Override
+			public int read() throws IOException {
+				Phase previous = enter(phase);
+				try {
+					int b = super.read();
+					if (b >= 0 && phase == Phase.READ)
+						countRead(1);
+					return b;
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				Phase previous = enter(phase);
+				try {
+					int n = super.read(b, off, len);
+					if (n > 0 && phase == Phase.READ)
+						countRead(n);
+					return n;
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				Phase previous = enter(phase);
+				try {
+					return super.skip(n);
+				} finally {
+					exit(previous);
+				}
+			}
+		};
+	}
+
+	/** Attributes the time spent writing to the stream to the phase. Bytes written with {@link Phase#WRITE} are counted as written to the destination. */
+	public static OutputStream time(OutputStream out, Phase phase) {
+		return new FilterOutputStream(out) {
+
+			@Override
+			public void write(int b) throws IOException {
+				Phase previous = enter(phase);
+				try {
+					out.write(b);
+					if (phase == Phase.WRITE)
+						countWritten(1);
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Phase previous = enter(phase);
+				try {
+					out.write(b, off, len);
+					if (phase == Phase.WRITE)
+						countWritten(len);
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				Phase previous = enter(phase);
+				try {
+					out.flush();
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				Phase previous = enter(phase);
+				try {
+					super.close();
+				} finally {
+					exit(previous);
+				}
+			}
+		};
+	}
+
+	/** A single line describing how far the conversion is, with the throughput and the estimated remaining time */
+	public String progress() {
+		long done = convertedFiles.sum() + failedFiles.sum();
+		long doneBytes = convertedBytes.sum();
+		long totalBytes = expectedBytes.sum();
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+		double throughput = doneBytes / seconds;
+		boolean known = !walking;
+		String eta = known && throughput > 0 ? formatDuration((long) ((totalBytes - doneBytes) / throughput)) : "unknown";
+		return String.format(Locale.ROOT, "Converted %d/%s files (%s/%s), %s/s, %d failed, ETA %s", done, known ? expectedFiles.sum() : "?",
+				formatBytes(doneBytes), known ? formatBytes(totalBytes) : "?", formatBytes((long) throughput), failedFiles.sum(), eta);
+	}
+
+	/** Writes all numbers as json */
+	public void writeReport(Writer writer) {
+		new GsonBuilder().setPrettyPrinting().create().toJson(new Report(this), writer);
+	}
+
+	static String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+		return String.format(Locale.ROOT, "%.1f %siB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+	}
+
+	static String formatDuration(long seconds) {
+		if (seconds < 60)
+			return seconds + "s";
+		if (seconds < 3600)
+			return seconds / 60 + "m " + seconds % 60 + "s";
+		return seconds / 3600 + "h " + seconds / 60 % 60 + "m";
+	}
+
+	static Map<Phase, Long> phaseMillis(long[] nanos) {
+		Map<Phase, Long> millis = new EnumMap<>(Phase.class);
+		for (Phase phase : Phase.values())
+			millis.put(phase, TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()]));
+		return millis;
+	}
+
+	/** The numbers of a single file while it is being converted */
+	public static class Recorder {
+		final Path		file;
+		final long		size;
+		final Recorder	outer;
+		final long[]	nanos	= new long[Phase.values().length];
+		Phase			phase;
+		long			start, since;
+		long			bytesRead, bytesWritten;
+		int				chunks;
+
+		Recorder(Path file, long size, Recorder outer) {
+			this.file = file;
+			this.size = size;
+			this.outer = outer;
+		}
+	}
+
+	static class FileReport {
+		String				file;
+		boolean				success;
+		long				size, bytesRead, bytesWritten, millis;
+		int					chunks;
+		Map<Phase, Long>	phaseMillis;
+
+		FileReport(Recorder recorder, boolean success, long nanos) {
+			file = recorder.file.toString();
+			this.success = success;
+			size = recorder.size;
+			bytesRead = recorder.bytesRead;
+			bytesWritten = recorder.bytesWritten;
+			millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			chunks = recorder.chunks;
+			phaseMillis = phaseMillis(recorder.nanos);
+		}
+	}
+
+	/** The structure of the json report */
+	static class Report {
+		String				action, source, destination;
+		long				startTime, millis;
+		long				convertedFiles, skippedFiles, failedFiles;
+		long				bytesRead, bytesWritten, chunks;
+		Map<Phase, Long>	phaseMillis;
+		List<FileReport>	files;
+
+		Report(Metrics metrics) {
+			action = metrics.action;
+			source = String.valueOf(metrics.source);
+			destination = String.valueOf(metrics.destination);
+			startTime = metrics.startTime;
+			millis = System.currentTimeMillis() - metrics.startTime;
+			convertedFiles = metrics.convertedFiles.sum();
+			skippedFiles = metrics.skippedFiles.sum();
+			failedFiles = metrics.failedFiles.sum();
+			bytesRead = metrics.bytesRead.sum();
+			bytesWritten = metrics.bytesWritten.sum();
+			chunks = metrics.chunks.sum();
+			long[] nanos = new long[Phase.values().length];
+			for (int i = 0; i < nanos.length; i++)
+				nanos[i] = metrics.phaseNanos[i].sum();
+			phaseMillis = phaseMillis(nanos);
+			synchronized (metrics.files) {
+				files = new ArrayList<>(metrics.files);
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package de.piegames.mctext;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.flowpowered.nbt.TagType;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Converts binary nbt data to json while reading it, without building the tag tree in memory. The output is the same as the one of
+ * {@link Converter#writeJson(com.flowpowered.nbt.Tag, java.io.Writer)} on the parsed tag.
+ */
+class NBTTranscoder {
+
+	protected final DataInputStream	in;
+	protected final JsonWriter		out;
+	/** Write int and long arrays as arrays of hex words, see {@link Converter#hexArrays} */
+	protected final boolean			hexArrays;
+	protected byte[]				buffer	= new byte[256];
+
+	public NBTTranscoder(InputStream in, JsonWriter out) {
+		this(in, out, false);
+	}
+
+	public NBTTranscoder(InputStream in, JsonWriter out, boolean hexArrays) {
+		this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+		this.out = out;
+		this.hexArrays = hexArrays;
+	}
+
+	/** Reads the root tag and writes its value. Like in the tree, the name of the root tag is dropped. */
+	public void transcode() throws IOException {
+		TagType type = readType();
+		if (type == TagType.TAG_END)
+			return;
+		readString();
+		transcode(type);
+	}
+
+	/** Like {@link #transcode()}, but the root tag must be a compound */
+	public void transcodeCompound() throws IOException {
+		TagType type = readType();
+		if (type != TagType.TAG_COMPOUND)
+			throw new IOException("Expected a compound tag, got " + type);
+		readString();
+		transcode(type);
+	}
+
+	protected void transcode(TagType type) throws IOException {
+		switch (type) {
+		case TAG_BYTE:
+			out.value(in.readByte());
+			break;
+		case TAG_DOUBLE:
+			/* value(double) rejects NaN and infinities even when lenient, value(Number) does not */
+			out.value((Number) in.readDouble());
+			break;
+		case TAG_FLOAT:
+			/* Float.toString, like the boxed value in the tree */
+			out.value((Number) in.readFloat());
+			break;
+		case TAG_INT:
+			out.value(in.readInt());
+			break;
+		case TAG_LONG:
+			out.value(in.readLong());
+			break;
+		case TAG_SHORT:
+			out.value(in.readShort());
+			break;
+		case TAG_STRING:
+			out.value(readString());
+			break;
+		/* Nbt arrays are big endian, so their Base64 encoding is the one of the raw bytes */
+		case TAG_BYTE_ARRAY:
+			ArrayCodec.write(out, in, readLength());
+			break;
+		case TAG_INT_ARRAY:
+			if (hexArrays)
+				ArrayCodec.writeHex(out, in, readLength(), 4);
+			else
+				ArrayCodec.write(out, in, readLength() * 4);
+			break;
+		case TAG_SHORT_ARRAY:
+			ArrayCodec.write(out, in, readLength() * 2);
+			break;
+		case TAG_LONG_ARRAY:
+			if (hexArrays)
+				ArrayCodec.writeHex(out, in, readLength(), 8);
+			else
+				ArrayCodec.write(out, in, readLength() * 8);
+			break;
+		case TAG_COMPOUND: {
+			out.beginObject();
+			for (TagType t = readType(); t != TagType.TAG_END; t = readType()) {
+				out.name(KeyCodec.encode(readString(), t));
+				transcode(t);
+			}
+			out.endObject();
+			break;
+		}
+		case TAG_LIST: {
+			TagType elementType = readType();
+			int length = in.readInt();
+			out.beginArray();
+			out.value(KeyCodec.encode("", elementType));
+			for (int i = 0; i < length; i++)
+				transcode(elementType);
+			out.endArray();
+			break;
+		}
+		case TAG_END:
+			break;
+		default:
+			throw new Error();
+		}
+	}
+
+	protected TagType readType() throws IOException {
+		int id = in.readUnsignedByte();
+		TagType type = TagType.getById(id);
+		if (type == null)
+			throw new IOException("Invalid tag type: " + id);
+		return type;
+	}
+
+	protected int readLength() throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > Integer.MAX_VALUE / 8)
+			throw new IOException("Invalid array length: " + length);
+		return length;
+	}
+
+	protected String readString() throws IOException {
+		int length = in.readUnsignedShort();
+		if (buffer.length < length)
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		in.readFully(buffer, 0, length);
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -1,11 +1,16 @@
 package de.piegames.mctext;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -15,6 +20,9 @@ import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import com.flowpowered.nbt.CompoundTag;
+import com.flowpowered.nbt.stream.NBTInputStream;
+
 public class RegionFile {
 
 	protected Path				file;
@@ -67,6 +75,67 @@ public class RegionFile {
 		raf.close();
 	}
 
+	/**
+	 * Creates a region file from the content of a file. The chunks and unused sectors will be read-only slices of the data, only the header gets
+	 * copied.
+	 */
+	RegionFile(Path file, ByteBuffer data) {
+		this.file = file;
+		unused = new HashMap<>();
+
+		/* Copy the header, since clearUnusedData modifies it */
+		locations = ByteBuffer.allocate(4096);
+		locations.put(slice(data, 0, 4096));
+		locations.flip();
+		locations2 = locations.asIntBuffer();
+
+		timestamps = ByteBuffer.allocate(4096);
+		timestamps.put(slice(data, 4096, 4096));
+		timestamps.flip();
+		timestamps2 = timestamps.asIntBuffer();
+
+		int sectors = (int) Math.ceil(data.capacity() / 4096d);
+		BitSet used = new BitSet(sectors);
+		for (int i = 0; i < 1024; i++) {
+			int chunkPos = locations2.get(i) >>> 8;
+			int chunkLength = locations2.get(i) & 0xFF;
+			if (chunkPos > 0) {
+				chunks[i] = slice(data, chunkPos << 12, chunkLength << 12);
+				used.set(chunkPos, chunkPos + chunkLength);
+			}
+		}
+		for (int i = used.nextClearBit(2); i < sectors; i = used.nextClearBit(i + 1))
+			unused.put(i, slice(data, i << 12, 4096));
+	}
+
+	/**
+	 * Opens a region file by memory-mapping it instead of reading it into the heap. Opening is nearly free this way, since only the header gets
+	 * copied. The chunks are read-only slices of the mapping and will be loaded by the operating system as they are accessed, which makes this the
+	 * right choice if only a few chunks are needed using {@link #getChunk(int, int)}. Files that are not on the default file system, like inside a zip
+	 * archive, will be read into memory instead.
+	 */
+	public static RegionFile map(Path file) throws IOException {
+		return new RegionFile(file, read(file));
+	}
+
+	/** The content of the file, mapped or read into memory like for {@link #map(Path)} */
+	static ByteBuffer read(Path file) throws IOException {
+		if (file.getFileSystem() != FileSystems.getDefault())
+			return ByteBuffer.wrap(Files.readAllBytes(file));
+		try (FileChannel raf = FileChannel.open(file, StandardOpenOption.READ)) {
+			return raf.map(MapMode.READ_ONLY, 0, raf.size());
+		}
+	}
+
+	/** Returns a slice of the buffer's content, the length will be truncated if the buffer is too short */
+	static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+		ByteBuffer slice = data.duplicate();
+		slice.clear();
+		slice.position(Math.min(offset, slice.capacity()));
+		slice.limit(Math.min(offset + length, slice.capacity()));
+		return slice.slice();
+	}
+
 	public RegionFile(ByteBuffer locations, ByteBuffer timestamps, ByteBuffer[] chunks,
 			Map<Integer, ByteBuffer> unused) {
 		this.locations = Objects.requireNonNull(locations);
@@ -78,6 +147,20 @@ public class RegionFile {
 	}
 
 	public void write(Path file) throws IOException {
+		write(file, false);
+	}
+
+	/**
+	 * Writes the region to a file. Normally, every chunk and unused sector is written to its original position. If {@code compact} is set, the chunks
+	 * are packed without any gaps instead, in the order of their original positions, and the location table is changed accordingly. The unused data
+	 * is dropped. The result is as small as possible and gets written with a single gathering write. This region's location table is not changed.
+	 */
+	public void write(Path file, boolean compact) throws IOException {
+		if (compact) {
+			writeCompact(file);
+			return;
+		}
+		relocateOverlapping();
 		FileChannel raf = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
 				StandardOpenOption.TRUNCATE_EXISTING);
 		rewind();
@@ -100,6 +183,90 @@ public class RegionFile {
 		rewind();
 	}
 
+	/**
+	 * Moves chunks that would overlap another chunk when written at their position to the end of the file and updates the location table. This
+	 * happens when chunks got recompressed to a bigger size than they had, e.g. with a faster compression level. Chunks that share their sectors
+	 * with an identical chunk are left alone, as are all chunks of a valid region file. Unused sectors that overlap a chunk are dropped.
+	 */
+	void relocateOverlapping() {
+		rewind();
+		int[] order = IntStream.range(0, 1024)
+				.filter(i -> chunks[i] != null)
+				.boxed()
+				.sorted((a, b) -> Integer.compare(locations2.get(a) >>> 8, locations2.get(b) >>> 8))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		int end = 2, previous = -1;
+		BitSet moved = new BitSet();
+		for (int i : order) {
+			int chunkPos = locations2.get(i) >>> 8;
+			if (previous >= 0 && chunkPos == locations2.get(previous) >>> 8 && chunks[i].equals(chunks[previous]))
+				continue;
+			if (chunkPos < end)
+				moved.set(i);
+			else {
+				end = chunkPos + (locations2.get(i) & 0xFF);
+				previous = i;
+			}
+		}
+		if (moved.isEmpty())
+			return;
+
+		if (unused != null)
+			for (int sector : unused.keySet())
+				end = Math.max(end, sector + 1);
+		for (int i = moved.nextSetBit(0); i >= 0; i = moved.nextSetBit(i + 1)) {
+			int sectors = locations2.get(i) & 0xFF;
+			locations2.put(i, end << 8 | sectors);
+			end += sectors;
+		}
+		if (unused != null) {
+			BitSet used = new BitSet();
+			for (int i : order)
+				used.set(locations2.get(i) >>> 8, (locations2.get(i) >>> 8) + (locations2.get(i) & 0xFF));
+			unused.keySet().removeIf(used::get);
+		}
+	}
+
+	void writeCompact(Path file) throws IOException {
+		rewind();
+		/* Keep the order of the chunks in the file, the server probably had a reason for it */
+		int[] order = IntStream.range(0, 1024)
+				.filter(i -> chunks[i] != null)
+				.boxed()
+				.sorted((a, b) -> Integer.compare(locations2.get(a) >>> 8, locations2.get(b) >>> 8))
+				.mapToInt(Integer::intValue)
+				.toArray();
+
+		ByteBuffer newLocations = ByteBuffer.allocate(4096);
+		ByteBuffer[] buffers = new ByteBuffer[2 + 2 * order.length];
+		buffers[0] = newLocations;
+		buffers[1] = timestamps;
+		ByteBuffer padding = ByteBuffer.allocate(4096).asReadOnlyBuffer();
+		int sector = 2;
+		long size = 8192;
+		for (int j = 0; j < order.length; j++) {
+			int i = order[j];
+			/* The length field, the compression type and the data, without anything after it */
+			ByteBuffer chunk = slice(chunks[i], 0, chunks[i].getInt(0) + 4);
+			int sectors = (chunk.remaining() + 4095) >> 12;
+			if (sectors > 255)
+				throw new IOException("Chunk " + i + " is too big for a region file");
+			newLocations.putInt(4 * i, sector << 8 | sectors);
+			buffers[2 + 2 * j] = chunk;
+			buffers[3 + 2 * j] = slice(padding, 0, (sectors << 12) - chunk.remaining());
+			sector += sectors;
+			size += sectors << 12;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			/* A gathering write may be partial, e.g. if there are more buffers than the system allows in one call */
+			for (long written = 0; written < size;)
+				written += channel.write(buffers);
+		}
+		rewind();
+	}
+
 	public void rewind() {
 		locations.rewind();
 		locations2.rewind();
@@ -112,6 +279,75 @@ public class RegionFile {
 			unused.values().forEach(ByteBuffer::rewind);
 	}
 
+	/** Returns the index of the chunk in the header. Coordinates outside of 0-31 are treated as world chunk coordinates. */
+	public static int index(int x, int z) {
+		return (x & 31) | (z & 31) << 5;
+	}
+
+	/** Returns whether the chunk at the given position exists in this file. */
+	public boolean hasChunk(int x, int z) {
+		return chunks[index(x, z)] != null;
+	}
+
+	/** Returns the time the chunk was last saved, in seconds since the epoch, or 0 if it does not exist. */
+	public int getTimestamp(int x, int z) {
+		return timestamps2.get(index(x, z));
+	}
+
+	/**
+	 * Returns the compression type of the chunk at the given position: 1 for GZip and 2 for Zlib.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the chunk does not exist
+	 */
+	public byte getCompression(int x, int z) {
+		return chunk(index(x, z)).get(4);
+	}
+
+	/**
+	 * Returns the raw, still compressed data of the chunk at the given position as read-only buffer, or {@code null} if it does not exist. When
+	 * opened with {@link #map(Path)}, this will only read the sectors of this chunk.
+	 */
+	public ByteBuffer getChunkData(int x, int z) {
+		int i = index(x, z);
+		return chunks[i] == null ? null : chunkData(i);
+	}
+
+	/**
+	 * Decompresses and parses the chunk at the given position, or returns {@code null} if it does not exist. When opened with {@link #map(Path)}, this
+	 * will only read the sectors of this chunk.
+	 */
+	public CompoundTag getChunk(int x, int z) throws IOException {
+		int i = index(x, z);
+		return chunks[i] == null ? null : readChunk(i);
+	}
+
+	ByteBuffer chunk(int i) {
+		if (chunks[i] == null)
+			throw new IllegalArgumentException("Chunk " + i + " does not exist");
+		return chunks[i];
+	}
+
+	/** The compressed chunk data, without the length and compression header. */
+	ByteBuffer chunkData(int i) {
+		ByteBuffer data = chunk(i).duplicate();
+		data.clear();
+		data.position(5);
+		data.limit(4 + data.getInt(0));
+		return data.slice().asReadOnlyBuffer();
+	}
+
+	/** A stream of the decompressed nbt data of the chunk */
+	InputStream openChunk(int i) throws IOException {
+		return Compression.decompress(new ByteBufferInputStream(chunkData(i)), chunk(i).get(4));
+	}
+
+	CompoundTag readChunk(int i) throws IOException {
+		try (NBTInputStream in = new NBTInputStream(new ByteBufferInputStream(chunkData(i)), chunk(i).get(4))) {
+			return (CompoundTag) in.readTag();
+		}
+	}
+
 	public Path getFile() {
 		return file;
 	}
@@ -1,8 +1,11 @@
 package de.piegames.mctext;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
@@ -11,6 +14,7 @@ import de.piegames.mctext.Standalone.BackupFileCommand;
 import de.piegames.mctext.Standalone.BackupWorldCommand;
 import de.piegames.mctext.Standalone.RestoreFileCommand;
 import de.piegames.mctext.Standalone.RestoreWorldCommand;
+import de.piegames.mctext.Standalone.WatchCommand;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.HelpCommand;
@@ -24,11 +28,12 @@ import picocli.CommandLine.RunLast;
 				BackupFileCommand.class,
 				BackupWorldCommand.class,
 				RestoreFileCommand.class,
-				RestoreWorldCommand.class })
+				RestoreWorldCommand.class,
+				WatchCommand.class })
 public class Standalone implements Runnable {
 
 	public static enum CommandType {
-		BACKUP_FILE, BACKUP_WORLD, RESTORE_FILE, RESTORE_WORLD;
+		BACKUP_FILE, BACKUP_WORLD, RESTORE_FILE, RESTORE_WORLD, WATCH;
 	}
 
 	public static abstract class ConvertCommand implements Callable<BackupHelper> {
@@ -74,11 +79,48 @@ public class Standalone implements Runnable {
 		public boolean	delete;
 
 		@Option(names = { "--lazy", "-l" },
-				description = "Skip files that have a newer timestamp than the original, assuming that the original hasn't changed since then. Use in "
-						+ "combination with --force to speed up repeated conversions to the same destination over time. The result may not be correct if "
-						+ "files in the input data got deleted or renamed, run with --delete instead in those cases.")
+				description = "Only convert files that changed since the last conversion to the same destination. For this, a manifest with the size, "
+						+ "modification time and a hash of every converted file is kept in the destination. Files that got deleted or renamed in the source "
+						+ "will be deleted in the destination too, and changing the conversion options will convert all files again. Use in combination "
+						+ "with --force to speed up repeated conversions to the same destination over time.")
 		public boolean	lazy;
 
+		@Option(names = { "--threads", "-t" },
+				description = "The number of files to convert in parallel when processing a whole world. Defaults to the number of available processors.")
+		public int		threads	= Runtime.getRuntime().availableProcessors();
+
+		@Option(names = { "--parallel-chunks" },
+				description = "Additionally decode and encode the chunks within each region file in parallel. This helps if a few very big region files"
+						+ " dominate the conversion time, especially when restoring.")
+		public boolean	parallelChunks;
+
+		@Option(names = { "--max-memory" },
+				paramLabel = "SIZE",
+				description = "The amount of memory that the files converted in parallel may use together, like 512M or 2G. The need of each file is"
+						+ " estimated from its size and format, files that exceed the limit on their own are converted alone. Defaults to half of the"
+						+ " maximum heap size.")
+		public String	maxMemory;
+
+		@Option(names = { "--report" },
+				paramLabel = "FILE",
+				description = "Write a json report with the time spent reading, decompressing, converting, compressing and writing, the bytes read and"
+						+ " written and the number of chunks, for the whole run and for every file.")
+		public Path		report;
+
+		@Option(names = { "--progress" },
+				paramLabel = "SECONDS",
+				description = "Log the progress with the throughput and the estimated remaining time every that many seconds while converting a"
+						+ " world. 0 disables it.")
+		public int		progressInterval	= 10;
+
+		@Option(names = { "--chunk-store" },
+				paramLabel = "DIR",
+				description = "Store every chunk of the region files only once in this folder, named after a hash of its content. The backup then only"
+						+ " contains the hashes of the chunks of each region, so chunks that did not change between backups don't take any additional space."
+						+ " Use the same folder for all backups of a world, and pass it again when restoring. Chunks are never deleted from it. When"
+						+ " committing to git, the folder only gets committed if it is inside of the repository.")
+		public Path		chunkStore;
+
 		@Parameters(index = "0",
 				paramLabel = "SOURCE",
 				description = "The location of the file or folder containing the original data when backing up, and"
@@ -89,6 +131,32 @@ public class Standalone implements Runnable {
 				description = "The location of the file or folder that will contain the converted data after"
 						+ "executing the operation. This will be your backup when backing up and your broken world when restoring")
 		public Path		destination;
+
+		protected BackupHelper createHelper(boolean prettyPrinting) {
+			if (verbose)
+				Configurator.setRootLevel(Level.DEBUG);
+			BackupHelper backup = new BackupHelper(createConverter(prettyPrinting), dryRun, nbtCompression, decompress, overwriteExisting, failFast, delete,
+					lazy);
+			backup.threads = threads;
+			backup.progressInterval = progressInterval;
+			backup.chunkStore = chunkStore;
+			if (maxMemory != null)
+				backup.maxMemory = parseSize(maxMemory);
+			return backup;
+		}
+
+		/** Writes the {@link #report}, if requested */
+		protected BackupHelper finish(BackupHelper backup) throws IOException {
+			if (report != null)
+				try (Writer writer = BackupHelper.newWriter(report)) {
+					backup.metrics.writeReport(writer);
+				}
+			return backup;
+		}
+
+		protected Converter createConverter(boolean prettyPrinting) {
+			return new Converter(prettyPrinting, keepUnusedData, parallelChunks);
+		}
 	}
 
 	public static abstract class BackupCommand extends ConvertCommand {
@@ -97,9 +165,61 @@ public class Standalone implements Runnable {
 						+ " works a lot better when checking this.")
 		public boolean prettyPrinting;
 
+		@Option(names = { "--incremental", "-i" },
+				description = "Keep an index of where each chunk is located in the converted region files. When a region file gets backed up again, only the"
+						+ " chunks that changed since then will be converted, the others will be copied from the existing backup. Has no effect"
+						+ " together with --decompress.")
+		public boolean incremental;
+
+		@Option(names = { "--split-regions" },
+				description = "Back up every region file as a folder with one file per chunk and a small header file. This makes diffing and"
+						+ " delta compression a lot faster, since only the files of the chunks that changed will be different. Restoring detects this"
+						+ " automatically.")
+		public boolean splitRegions;
+
+		@Option(names = { "--hex-arrays" },
+				description = "Write int and long arrays, like the block states of chunk sections, as a list of hex words instead of a single Base64"
+						+ " string. Together with --pretty, every word is on its own line, so changing a block only changes one line. This makes the"
+						+ " backup bigger, but git's delta compression a lot more effective. Restoring detects this automatically.")
+		public boolean hexArrays;
+
+		@Override
+		protected Converter createConverter(boolean prettyPrinting) {
+			return new Converter(prettyPrinting, keepUnusedData, parallelChunks, Deflater.DEFAULT_COMPRESSION, hexArrays);
+		}
+
+		@Override
+		protected BackupHelper createHelper(boolean prettyPrinting) {
+			BackupHelper backup = super.createHelper(prettyPrinting);
+			backup.incremental = incremental;
+			backup.splitRegions = splitRegions;
+			return backup;
+		}
 	}
 
 	public static abstract class RestoreCommand extends ConvertCommand {
+		@Option(names = { "--restore-compression-level" },
+				description = "The deflate level for compressing the restored chunks and nbt files, from 0 (fastest) to 9 (smallest). -1 uses zlib's"
+						+ " default, which is what Minecraft does too. Together with --parallel-chunks, the chunks of each region are compressed on"
+						+ " all cores.")
+		public int		compressionLevel	= -1;
+
+		@Option(names = { "--compact" },
+				description = "Pack the chunks of every restored region file tightly instead of putting them where they were in the original file."
+						+ " The region files get smaller and faster to load, but will not be the same as the original ones even with --keep-unused.")
+		public boolean	compact;
+
+		@Override
+		protected Converter createConverter(boolean prettyPrinting) {
+			return new Converter(prettyPrinting, keepUnusedData, parallelChunks, compressionLevel);
+		}
+
+		@Override
+		protected BackupHelper createHelper(boolean prettyPrinting) {
+			BackupHelper backup = super.createHelper(prettyPrinting);
+			backup.compact = compact;
+			return backup;
+		}
 	}
 
 	@Command(name = "backup-file", description = "Backs up a single file", showDefaultValues = true)
@@ -107,26 +227,21 @@ public class Standalone implements Runnable {
 
 		@Override
 		public BackupHelper call() throws IOException {
-			if (verbose)
-				Configurator.setRootLevel(Level.DEBUG);
-			BackupHelper backup = new BackupHelper(prettyPrinting, keepUnusedData, dryRun, nbtCompression, decompress, overwriteExisting, failFast, delete,
-					lazy);
-			backup.backupFile(source, destination);
-			return backup;
+			BackupHelper backup = createHelper(prettyPrinting);
+			backup.metrics.start("back up", source, destination);
+			backup.convertFile(source, destination, backup::backupFile);
+			return finish(backup);
 		}
 	}
 
-	@Command(name = "backup-world", description = "Back up a folder containing a whole world", showDefaultValues = true)
+	@Command(name = "backup-world", description = "Back up a folder containing a whole world, or a zip archive of it", showDefaultValues = true)
 	public static class BackupWorldCommand extends BackupCommand {
 
 		@Override
 		public BackupHelper call() throws IOException {
-			if (verbose)
-				Configurator.setRootLevel(Level.DEBUG);
-			BackupHelper backup = new BackupHelper(prettyPrinting, keepUnusedData, dryRun, nbtCompression, decompress, overwriteExisting, failFast, delete,
-					lazy);
+			BackupHelper backup = createHelper(prettyPrinting);
 			backup.backupWorld(source, destination);
-			return backup;
+			return finish(backup);
 		}
 	}
 
@@ -135,24 +250,83 @@ public class Standalone implements Runnable {
 
 		@Override
 		public BackupHelper call() throws IOException {
-			if (verbose)
-				Configurator.setRootLevel(Level.DEBUG);
-			BackupHelper backup = new BackupHelper(false, keepUnusedData, dryRun, nbtCompression, decompress, overwriteExisting, failFast, delete, lazy);
-			backup.restoreFile(source, destination);
-			return backup;
+			BackupHelper backup = createHelper(false);
+			backup.metrics.start("restore", source, destination);
+			backup.convertFile(source, destination, backup::restoreFile);
+			return finish(backup);
 		}
 	}
 
-	@Command(name = "restore-world", description = "Restore a folder containing a whole world", showDefaultValues = true)
+	@Command(name = "restore-world", description = "Restore a folder containing a whole world, or a zip archive of it", showDefaultValues = true)
 	public static class RestoreWorldCommand extends RestoreCommand {
 
 		@Override
 		public BackupHelper call() throws IOException {
-			if (verbose)
-				Configurator.setRootLevel(Level.DEBUG);
-			BackupHelper backup = new BackupHelper(false, keepUnusedData, dryRun, nbtCompression, decompress, overwriteExisting, failFast, delete, lazy);
+			BackupHelper backup = createHelper(false);
 			backup.restoreWorld(source, destination);
-			return backup;
+			return finish(backup);
+		}
+	}
+
+	@Command(name = "watch",
+			description = "Back up a world folder once and then keep watching it, converting every file shortly after it changed. Existing files in the"
+					+ " destination will be overwritten. Stop it with Ctrl+C.",
+			showDefaultValues = true)
+	public static class WatchCommand extends BackupCommand {
+		@Option(names = { "--debounce" },
+				paramLabel = "SECONDS",
+				description = "How long a file must stay unchanged before it gets converted. The server writes region files in bursts when saving, so this"
+						+ " avoids converting the same file several times in a row.")
+		public int	debounce			= 5;
+
+		@Option(names = { "--commit-interval" },
+				paramLabel = "SECONDS",
+				description = "Commit the changed files in the destination to git every that many seconds. The destination will be made a git"
+						+ " repository if it isn't one. 0 disables committing.")
+		public int	commitInterval;
+
+		@Override
+		public BackupHelper call() throws IOException {
+			overwriteExisting = true;
+			BackupHelper backup = createHelper(prettyPrinting);
+			CountDownLatch stopped = new CountDownLatch(1);
+			try (WorldWatcher watcher = new WorldWatcher(backup, source, destination)) {
+				/* On Ctrl+C, let the watcher finish its conversions, back up the last changes and write the report before exiting */
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					try {
+						watcher.stop();
+						stopped.await();
+					} catch (IOException | InterruptedException e) {
+					}
+				}, "mctext-shutdown"));
+				watcher.debounce = debounce * 1000L;
+				watcher.commitInterval = commitInterval * 1000L;
+				watcher.run();
+				return finish(backup);
+			} finally {
+				stopped.countDown();
+			}
+		}
+	}
+
+	/** Parses a number of bytes with an optional K, M or G suffix */
+	static long parseSize(String size) {
+		String number = size.trim().toUpperCase();
+		int shift = 0;
+		if (number.endsWith("B"))
+			number = number.substring(0, number.length() - 1);
+		if (number.endsWith("K"))
+			shift = 10;
+		else if (number.endsWith("M"))
+			shift = 20;
+		else if (number.endsWith("G"))
+			shift = 30;
+		if (shift != 0)
+			number = number.substring(0, number.length() - 1);
+		try {
+			return Long.parseLong(number.trim()) << shift;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size: " + size, e);
 		}
 	}
 
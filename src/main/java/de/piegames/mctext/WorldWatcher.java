@@ -0,0 +1,249 @@
+package de.piegames.mctext;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+/**
+ * Keeps a backup of a world up to date while the world is in use. All folders of the world are watched for changes. Since the server writes region
+ * files in bursts, a file is only converted once it has not been touched for {@link #debounce} milliseconds. Optionally, the destination is
+ * committed to git in regular intervals, staging only the files that changed in between.
+ */
+public class WorldWatcher implements Closeable {
+	public static final Logger			log				= LogManager.getLogger(WorldWatcher.class);
+
+	protected final BackupHelper		helper;
+	protected final Path				source, destination;
+	/** How long a file must stay unchanged before it gets converted, in milliseconds */
+	public long							debounce		= 5000;
+	/** Commit the destination to git every that many milliseconds if something changed. 0 disables it. */
+	public long							commitInterval;
+
+	protected final WatchService		watchService;
+	protected final Map<WatchKey, Path>	directories		= new HashMap<>();
+	/** The files that changed and need to be converted, mapped to the time of their last change */
+	protected final Map<Path, Long>		pending			= new HashMap<>();
+	protected long						lastCommit		= System.currentTimeMillis();
+	protected volatile boolean			stopped;
+
+	public WorldWatcher(BackupHelper helper, Path source, Path destination) throws IOException {
+		this.helper = helper;
+		this.source = source;
+		this.destination = destination;
+		this.watchService = source.getFileSystem().newWatchService();
+	}
+
+	/**
+	 * Backs up the whole world once, then keeps converting the files that change until {@link #stop()} is called. Then, or if the conversion of a file
+	 * fails with {@link BackupHelper#failFast}, the files that are still waiting are converted and committed right away before this returns.
+	 * Conversions are never interrupted, so stopping does not leave half written files behind.
+	 */
+	public void run() throws IOException {
+		try (Git git = commitInterval > 0 ? GitBackup.openOrCreate(destination) : null) {
+			try {
+				register(source);
+				log.info("Backing up " + source + " before watching it");
+				helper.backupWorld(source, destination);
+				while (!stopped) {
+					WatchKey key = watchService.poll(timeout(), TimeUnit.MILLISECONDS);
+					for (; key != null; key = watchService.poll())
+						handle(key);
+					convertPending();
+					if (git != null && System.currentTimeMillis() - lastCommit >= commitInterval)
+						commit(git);
+				}
+			} catch (ClosedWatchServiceException e) {
+				if (!stopped)
+					throw e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while watching " + source + ", use stop() instead");
+			} catch (IOException | RuntimeException e) {
+				try {
+					flush(git);
+				} catch (IOException | GitAPIException | RuntimeException e1) {
+					e.addSuppressed(e1);
+				}
+				throw e;
+			}
+			log.info("Stopped watching " + source + ", backing up the last changes");
+			flush(git);
+		} catch (GitAPIException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Lets {@link #run()} finish after the conversions that are currently running. Closes the watch service to wake it up, so this watcher can't be
+	 * started again. May be called from any thread.
+	 */
+	public void stop() throws IOException {
+		stopped = true;
+		watchService.close();
+	}
+
+	/** How long to wait for the next change before something else needs to be done */
+	long timeout() {
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for (long changed : pending.values())
+			next = Math.min(next, changed + debounce);
+		if (commitInterval > 0)
+			next = Math.min(next, lastCommit + commitInterval);
+		return next == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, next - now);
+	}
+
+	/** Registers the folder and all its subfolders with the watch service and returns all files in them */
+	List<Path> register(Path folder) throws IOException {
+		List<Path> files = new ArrayList<>();
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (dir.getFileName() != null && dir.getFileName().toString().equals(ChunkIndex.FOLDER))
+					return FileVisitResult.SKIP_SUBTREE;
+				directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	void handle(WatchKey key) throws IOException {
+		Path dir = directories.get(key);
+		long now = System.currentTimeMillis();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				log.warn("Missed some changes in " + source + ", backing up everything again");
+				/* The full backup forgets what changed before, but that has not been committed yet */
+				Set<Path> written = new HashSet<>(helper.writtenFiles);
+				Set<Path> deleted = new HashSet<>(helper.deletedFiles);
+				helper.backupWorld(source, destination);
+				helper.writtenFiles.addAll(written);
+				helper.deletedFiles.addAll(deleted);
+				pending.clear();
+				continue;
+			}
+			if (dir == null)
+				continue;
+			Path file = dir.resolve((Path) event.context());
+			if (file.getFileName().toString().equals(Manifest.FILE_NAME))
+				continue;
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(file) && !BackupHelper.isSplitRegion(file))
+				/* Files may have been created in it before it got registered */
+				for (Path created : register(file))
+					pending.put(created, now);
+			else
+				pending.put(file, now);
+		}
+		if (!key.reset())
+			directories.remove(key);
+	}
+
+	/** Converts all files that did not change during the last {@link #debounce} milliseconds, and deletes the ones that don't exist anymore */
+	void convertPending() throws IOException {
+		convertPending(false);
+	}
+
+	/**
+	 * Like {@link #convertPending()}, but if {@code all} is set, the files that changed recently are converted too. Files that fail to convert stay
+	 * pending, they will be tried again after the {@link #debounce} time.
+	 */
+	void convertPending(boolean all) throws IOException {
+		convertPending(all, helper.failFast);
+	}
+
+	private void convertPending(boolean all, boolean failFast) throws IOException {
+		long now = System.currentTimeMillis();
+		List<Path> due = new ArrayList<>();
+		pending.forEach((file, changed) -> {
+			if (all || now - changed >= debounce)
+				due.add(file);
+		});
+		for (Path file : due) {
+			pending.remove(file);
+			Path target = BackupHelper.target(source, destination, file);
+			try {
+				if (Files.exists(file)) {
+					if (Files.isDirectory(file))
+						continue;
+					log.debug(file + " changed");
+					helper.createDirectories(target.getParent());
+					helper.convertFile(file, target, helper::backupFile);
+				} else if (Files.exists(target)) {
+					log.debug(file + " got deleted");
+					if (Files.isDirectory(target))
+						FileUtils.deleteDirectory(target.toFile());
+					else
+						Files.delete(target);
+					helper.deletedFiles.add(target);
+					Files.deleteIfExists(ChunkIndex.location(target));
+				}
+			} catch (IOException | RuntimeException e) {
+				pending.putIfAbsent(file, now);
+				if (failFast)
+					throw e;
+				log.error("Could not back up " + file + ", trying again later", e);
+			}
+		}
+	}
+
+	/**
+	 * Converts all files that are still waiting, without waiting for them to settle, and commits them if committing is enabled. Failures are only
+	 * logged, so that one broken file does not keep the others from being backed up.
+	 */
+	void flush(Git git) throws IOException, GitAPIException {
+		convertPending(true, false);
+		if (git != null)
+			commit(git);
+	}
+
+	/** Stages and commits the files that changed since the last commit */
+	void commit(Git git) throws GitAPIException {
+		lastCommit = System.currentTimeMillis();
+		if (helper.writtenFiles.isEmpty() && helper.deletedFiles.isEmpty())
+			return;
+		log.info("Committing " + helper.writtenFiles.size() + " changed and " + helper.deletedFiles.size() + " deleted files");
+		GitBackup.stage(git, destination, helper.writtenFiles, helper.deletedFiles);
+		git.commit().setMessage("Backup " + source.getFileName()).call();
+		helper.writtenFiles.clear();
+		helper.deletedFiles.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
@@ -3,16 +3,49 @@ package de.piegames.mctext;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
 import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 public class BackupHelperTest {
 
 	/* NBT<->text */
@@ -45,6 +78,511 @@ public class BackupHelperTest {
 		foldersEqual(world, restore);
 	}
 
+	@Test
+	public void testLazy() throws IOException {
+		Path world = Files.createTempDirectory("mctext");
+		FileUtils.copyDirectory(Paths.get(URI.create(getClass().getResource("/testworld/").toString())).toFile(), world.toFile());
+		Path backup = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, true);
+		helper.backupWorld(world, backup);
+		assertTrue(Files.exists(backup.resolve(Manifest.FILE_NAME)));
+
+		/* Mark converted files to see if they get written again */
+		Files.write(backup.resolve("r0.mca"), "unchanged".getBytes());
+		Files.write(backup.resolve("stats.json"), "unchanged".getBytes());
+		Files.setLastModifiedTime(world.resolve("r0.mca"), FileTime.fromMillis(0));
+		Files.write(world.resolve("stats.json"), "{}".getBytes());
+		Files.delete(world.resolve("icon.png"));
+		helper.backupWorld(world, backup);
+
+		assertEquals("unchanged", new String(Files.readAllBytes(backup.resolve("r0.mca"))));
+		assertEquals("{}", new String(Files.readAllBytes(backup.resolve("stats.json"))));
+		assertFalse(Files.exists(backup.resolve("icon.png")));
+
+		/* Different options must convert everything again */
+		new BackupHelper(true, true, false, 1, false, true, true, false, true).backupWorld(world, backup);
+		assertNotEquals("unchanged", new String(Files.readAllBytes(backup.resolve("r0.mca"))));
+	}
+
+	@Test
+	public void testManifestHash() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, true);
+		helper.backupWorld(world, backup);
+		/* The hashes computed while converting must be the same as when reading the files */
+		Manifest manifest = Manifest.load(backup);
+		assertFalse(manifest.files.isEmpty());
+		for (Entry<String, Manifest.FileEntry> e : manifest.files.entrySet())
+			assertEquals(Manifest.hash(world.resolve(e.getKey())), e.getValue().hash, e.getKey());
+
+		/* Entries without options are outdated, not broken */
+		manifest.files.values().forEach(entry -> entry.options = null);
+		manifest.save(backup);
+		helper.backupWorld(world, backup);
+		assertEquals(0, helper.metrics.skippedFiles.sum());
+	}
+
+	@Test
+	public void testIncremental() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup1 = Files.createTempDirectory("mctext");
+		Path backup2 = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(true, true, false, 1, false, true, true, false, false);
+		helper.incremental = true;
+		helper.backupWorld(world, backup1);
+		assertTrue(Files.exists(ChunkIndex.location(backup1.resolve("r0.mca"))));
+		helper.backupWorld(world, backup1);
+		new BackupHelper(true, true, false, 1, false, true, true, false, false).backupWorld(world, backup2);
+		assertArrayEquals(Files.readAllBytes(backup2.resolve("r0.mca")), Files.readAllBytes(backup1.resolve("r0.mca")));
+	}
+
+	@Test
+	public void testSplitRegions() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		for (boolean decompress : new boolean[] { false, true }) {
+			Path backup = Files.createTempDirectory("mctext");
+			Path restore = Files.createTempDirectory("mctext");
+			BackupHelper helper = new BackupHelper(false, true, false, 1, decompress, true, true, false, false);
+			helper.splitRegions = true;
+			helper.backupWorld(world, backup);
+			assertTrue(Files.isDirectory(backup.resolve("r0.mca")));
+			helper.restoreWorld(backup, restore);
+			for (String region : new String[] { "r0.mca", "r2.mca", "r4.mca" })
+				assertArrayEquals(Files.readAllBytes(world.resolve(region)), Files.readAllBytes(restore.resolve(region)));
+		}
+	}
+
+	@Test
+	public void testChunkStore() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		for (boolean decompress : new boolean[] { false, true }) {
+			Path store = Files.createTempDirectory("mctext");
+			Path backup1 = Files.createTempDirectory("mctext");
+			Path backup2 = Files.createTempDirectory("mctext");
+			Path restore = Files.createTempDirectory("mctext");
+			BackupHelper helper = new BackupHelper(false, true, false, 1, decompress, true, true, false, false);
+			helper.chunkStore = store;
+			helper.backupWorld(world, backup1);
+			long objects = countFiles(store);
+			assertTrue(objects > 0);
+			/* Nothing changed, so the second backup must not add any chunks */
+			helper.backupWorld(world, backup2);
+			assertEquals(objects, countFiles(store));
+			assertTrue(Files.size(backup2.resolve("r0.mca")) < Files.size(world.resolve("r0.mca")));
+			helper.restoreWorld(backup2, restore);
+			for (String region : new String[] { "r0.mca", "r2.mca", "r4.mca" })
+				assertArrayEquals(Files.readAllBytes(world.resolve(region)), Files.readAllBytes(restore.resolve(region)));
+
+			/* Without the store, the backup must be recognized instead of being parsed as region */
+			BackupHelper withoutStore = new BackupHelper(false, true, false, 1, decompress, true, true, false, false);
+			IOException e = assertThrows(IOException.class, () -> withoutStore.restoreWorld(backup2, restore));
+			assertTrue(e.getMessage().contains("--chunk-store"), e.getMessage());
+		}
+	}
+
+	@Test
+	public void testNewChunkStore() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path store = Files.createTempDirectory("mctext").resolve("store");
+		Path backup = Files.createTempDirectory("mctext");
+		Path restore = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, false);
+		helper.chunkStore = store;
+		helper.backupWorld(world, backup);
+		assertTrue(countFiles(store) > 0);
+		helper.restoreWorld(backup, restore);
+		assertArrayEquals(Files.readAllBytes(world.resolve("r0.mca")), Files.readAllBytes(restore.resolve("r0.mca")));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup = Files.createTempDirectory("mctext");
+		Path restore = Files.createTempDirectory("mctext");
+		Path compact = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, false);
+		helper.backupWorld(world, backup);
+		helper.restoreWorld(backup, restore);
+		helper.compact = true;
+		helper.restoreWorld(backup, compact);
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			RegionFile expected = RegionFile.map(restore.resolve(name));
+			RegionFile region = RegionFile.map(compact.resolve(name));
+			assertTrue(Files.size(compact.resolve(name)) <= Files.size(restore.resolve(name)));
+			boolean[] used = new boolean[(int) (Files.size(compact.resolve(name)) >> 12)];
+			used[0] = used[1] = true;
+			for (int i = 0; i < 1024; i++) {
+				assertEquals(expected.chunks[i] == null, region.chunks[i] == null);
+				assertEquals(expected.timestamps2.get(i), region.timestamps2.get(i));
+				if (region.chunks[i] == null)
+					continue;
+				assertEquals(expected.chunkData(i), region.chunkData(i));
+				int location = region.locations2.get(i);
+				for (int sector = location >>> 8; sector < (location >>> 8) + (location & 0xFF); sector++) {
+					assertFalse(used[sector]);
+					used[sector] = true;
+				}
+			}
+			/* No gaps */
+			for (boolean sector : used)
+				assertTrue(sector);
+		}
+	}
+
+	static long countFiles(Path folder) throws IOException {
+		try (Stream<Path> files = Files.walk(folder)) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+
+	@Test
+	public void testZipSource() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path zip = Files.createTempDirectory("mctext").resolve("world.zip");
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(world)) {
+				for (Path file : files) {
+					out.putNextEntry(new ZipEntry("world/" + file.getFileName()));
+					Files.copy(file, out);
+				}
+			}
+		}
+		Path backup1 = Files.createTempDirectory("mctext");
+		Path backup2 = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(true, true, false, 1, false, false, true, false, false);
+		helper.backupWorld(world, backup1);
+		helper.backupWorld(zip, backup2);
+		foldersEqual(backup1, backup2);
+	}
+
+	@Test
+	public void testChangedFiles() throws IOException, GitAPIException {
+		Path world = Files.createTempDirectory("mctext");
+		FileUtils.copyDirectory(Paths.get(URI.create(getClass().getResource("/testworld/").toString())).toFile(), world.toFile());
+		Path gitPath = Files.createTempDirectory("mctext");
+		Path backup = gitPath.resolve("world");
+		BackupHelper helper = new BackupHelper(true, true, false, 1, false, true, true, false, true);
+		helper.incremental = true;
+		try (Git git = GitBackup.openOrCreate(gitPath)) {
+			helper.backupWorld(world, backup);
+			assertTrue(helper.writtenFiles.contains(backup.resolve("r2.mca")));
+			/* The chunk indices are neither reported nor committed */
+			assertTrue(Files.exists(ChunkIndex.location(backup.resolve("r2.mca"))));
+			assertFalse(helper.writtenFiles.contains(ChunkIndex.location(backup.resolve("r2.mca"))));
+			GitBackup.stage(git, gitPath, helper.writtenFiles, helper.deletedFiles);
+			git.commit().setMessage("Backup 1").call();
+			assertTrue(git.status().call().isClean());
+
+			Files.delete(world.resolve("r2.mca"));
+			helper.backupWorld(world, backup);
+			assertEquals(Collections.singleton(backup.resolve(Manifest.FILE_NAME)), helper.writtenFiles);
+			assertEquals(Collections.singleton(backup.resolve("r2.mca")), helper.deletedFiles);
+			GitBackup.stage(git, gitPath, helper.writtenFiles, helper.deletedFiles);
+			git.commit().setMessage("Backup 2").call();
+			assertTrue(git.status().call().isClean());
+
+			/* Files outside of the repository, like a separate chunk store, are left alone */
+			Path outside = Files.createTempFile("mctext", ".json");
+			GitBackup.stage(git, gitPath, Collections.singleton(outside), Collections.singleton(outside.resolveSibling("deleted")));
+			assertTrue(git.status().call().isClean());
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, false, true, false, false);
+		helper.backupWorld(world, backup);
+
+		StringWriter writer = new StringWriter();
+		helper.metrics.writeReport(writer);
+		JsonObject report = new JsonParser().parse(writer.toString()).getAsJsonObject();
+		long files = Files.list(world).count();
+		assertEquals(files, report.get("convertedFiles").getAsLong());
+		assertEquals(files, report.getAsJsonArray("files").size());
+		assertEquals(0, report.get("failedFiles").getAsLong());
+		assertTrue(report.get("chunks").getAsLong() > 0);
+		long size = 0;
+		for (Path file : (Iterable<Path>) Files.list(world)::iterator)
+			size += Files.size(file);
+		assertEquals(size, report.get("bytesRead").getAsLong());
+		assertEquals(Files.walk(backup).filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum(), report.get("bytesWritten").getAsLong());
+		assertTrue(helper.metrics.progress().startsWith("Converted " + files + "/" + files + " files"));
+		/* More files may still be found, so there is no total yet */
+		helper.metrics.beginWalk();
+		assertTrue(helper.metrics.progress().startsWith("Converted " + files + "/? files"));
+		assertTrue(helper.metrics.progress().endsWith("ETA unknown"));
+		helper.metrics.endWalk();
+		assertFalse(helper.metrics.progress().endsWith("ETA unknown"));
+	}
+
+	@Test
+	public void testMemoryBudget() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup1 = Files.createTempDirectory("mctext");
+		Path backup2 = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(true, true, false, 1, false, false, true, false, false);
+		helper.backupWorld(world, backup1);
+		/* Every file exceeds the budget and has to be converted alone */
+		helper.maxMemory = 1;
+		helper.backupWorld(world, backup2);
+		foldersEqual(backup1, backup2);
+
+		Path region = world.resolve("r0.mca");
+		assertEquals(Files.size(region), helper.memoryCost(region, Files.size(region), false));
+		assertTrue(helper2.memoryCost(region, Files.size(region), false) > helper.memoryCost(region, Files.size(region), false));
+		assertEquals(0, helper.memoryCost(world.resolve("icon.png"), 1000, false));
+		assertEquals(512L << 20, Standalone.parseSize("512M"));
+	}
+
+	@Test
+	public void testConversionOrder() {
+		PriorityBlockingQueue<BackupHelper.ConversionTask> queue = new PriorityBlockingQueue<>();
+		long[] sizes = { 5, 100, 5, 0, 7000 };
+		for (int i = 0; i < sizes.length; i++)
+			queue.add(new BackupHelper.ConversionTask(sizes[i], i, () -> null, new LinkedBlockingQueue<>()));
+		int[] expected = { 4, 1, 0, 2, 3 };
+		for (int order : expected)
+			assertEquals(order, queue.poll().order);
+	}
+
+	@Test
+	public void testScheduler() throws IOException {
+		Path source = Files.createTempDirectory("mctext");
+		long[] sizes = { 10, 5000, 300, 20000, 1, 700 };
+		for (int i = 0; i < sizes.length; i++)
+			Files.write(source.resolve("file" + i), new byte[(int) sizes[i]]);
+
+		/* The first file is converted right away, all others wait for it and then go biggest first */
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, false, false, false);
+		helper.threads = 1;
+		List<Long> converted = Collections.synchronizedList(new ArrayList<>());
+		helper.convertAll(source, Files.createTempDirectory("mctext"), null, null, (from, to) -> {
+			awaitWalk(helper);
+			converted.add(Files.size(from));
+		}, "convert");
+		assertEquals(sizes.length, converted.size());
+		List<Long> rest = new ArrayList<>(converted.subList(1, converted.size()));
+		rest.sort(Collections.reverseOrder());
+		assertEquals(rest, converted.subList(1, converted.size()));
+
+		/* Without --fail-fast, failures are only logged */
+		converted.clear();
+		helper.convertAll(source, Files.createTempDirectory("mctext"), null, null, (from, to) -> {
+			if (Files.size(from) == 300)
+				throw new IOException("Test failure");
+			converted.add(Files.size(from));
+		}, "convert");
+		assertEquals(sizes.length - 1, converted.size());
+		assertEquals(1, helper.metrics.failedFiles.sum());
+
+		/* With --fail-fast, the first failure cancels everything else */
+		BackupHelper failing = new BackupHelper(false, true, false, 1, false, true, true, false, false);
+		failing.threads = 1;
+		converted.clear();
+		IOException e = assertThrows(IOException.class, () -> failing.convertAll(source, Files.createTempDirectory("mctext"), null, null, (from, to) -> {
+			awaitWalk(failing);
+			if (converted.isEmpty()) {
+				converted.add(Files.size(from));
+				throw new IOException("Test failure");
+			}
+			/* Only finishes if it does not get cancelled */
+			try {
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+			} catch (InterruptedException e1) {
+				throw new InterruptedIOException();
+			}
+			converted.add(Files.size(from));
+		}, "convert"));
+		assertEquals("Test failure", e.getMessage());
+		assertEquals(1, converted.size());
+
+		/* A failure while walking cancels the files found so far */
+		Path destination = Files.createTempDirectory("mctext");
+		Files.createFile(destination.resolve("file5"));
+		BackupHelper existing = new BackupHelper(false, true, false, 1, false, false, true, false, false);
+		existing.threads = 1;
+		converted.clear();
+		assertThrows(FileAlreadyExistsException.class, () -> existing.convertAll(source, destination, null, null, (from, to) -> {
+			try {
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+			} catch (InterruptedException e1) {
+				throw new InterruptedIOException();
+			}
+			converted.add(Files.size(from));
+		}, "convert"));
+		assertTrue(converted.isEmpty());
+	}
+
+	private static void awaitWalk(BackupHelper helper) throws InterruptedIOException {
+		try {
+			while (helper.metrics.walking)
+				Thread.sleep(1);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	@Test
+	public void testWatcher() throws IOException {
+		Path world = Files.createTempDirectory("mctext");
+		FileUtils.copyDirectory(Paths.get(URI.create(getClass().getResource("/testworld/").toString())).toFile(), world.toFile());
+		Path backup = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, false);
+		helper.backupWorld(world, backup);
+		helper.writtenFiles.clear();
+
+		try (WorldWatcher watcher = new WorldWatcher(helper, world, backup)) {
+			watcher.debounce = 0;
+			Files.write(world.resolve("stats.json"), "{}".getBytes());
+			Files.delete(world.resolve("icon.png"));
+			watcher.pending.put(world.resolve("stats.json"), 0L);
+			watcher.pending.put(world.resolve("icon.png"), 0L);
+			watcher.convertPending();
+		}
+		assertTrue(helper.writtenFiles.contains(backup.resolve("stats.json")));
+		assertEquals("{}", new String(Files.readAllBytes(backup.resolve("stats.json"))));
+		assertEquals(Collections.singleton(backup.resolve("icon.png")), helper.deletedFiles);
+		assertFalse(Files.exists(backup.resolve("icon.png")));
+	}
+
+	@Test
+	public void testWatcherEvents() throws Exception {
+		Path world = Files.createTempDirectory("mctext");
+		FileUtils.copyDirectory(Paths.get(URI.create(getClass().getResource("/testworld/").toString())).toFile(), world.toFile());
+		Path backup = Files.createTempDirectory("mctext");
+		BackupHelper helper = new BackupHelper(false, true, false, 1, false, true, true, false, false);
+		helper.backupWorld(world, backup);
+		helper.writtenFiles.clear();
+
+		try (WorldWatcher watcher = new WorldWatcher(helper, world, backup)) {
+			watcher.debounce = 60000;
+			watcher.register(world);
+			assertEquals(Long.MAX_VALUE, watcher.timeout());
+			Files.write(world.resolve("stats.json"), "{}".getBytes());
+			for (WatchKey key; !watcher.pending.containsKey(world.resolve("stats.json"));) {
+				key = watcher.watchService.poll(10, TimeUnit.SECONDS);
+				assertNotNull(key);
+				watcher.handle(key);
+			}
+			long timeout = watcher.timeout();
+			assertTrue(timeout > 0 && timeout <= 60000);
+
+			/* Still within the debounce time */
+			watcher.convertPending();
+			assertFalse(helper.writtenFiles.contains(backup.resolve("stats.json")));
+			watcher.flush(null);
+			assertTrue(watcher.pending.isEmpty());
+			assertEquals("{}", new String(Files.readAllBytes(backup.resolve("stats.json"))));
+
+			/* A full backup must not forget the changes that happened before */
+			helper.deletedFiles.add(backup.resolve("icon.png"));
+			WatchEvent<Object> overflow = new WatchEvent<Object>() {
+
+				@Override
+				public Kind<Object> kind() {
+					return StandardWatchEventKinds.OVERFLOW;
+				}
+
+				@Override
+				public int count() {
+					return 1;
+				}
+
+				@Override
+				public Object context() {
+					return null;
+				}
+			};
+			watcher.handle(new WatchKey() {
+
+				@Override
+				public boolean isValid() {
+					return true;
+				}
+
+				@Override
+				public List<WatchEvent<?>> pollEvents() {
+					return Collections.singletonList(overflow);
+				}
+
+				@Override
+				public boolean reset() {
+					return true;
+				}
+
+				@Override
+				public void cancel() {
+				}
+
+				@Override
+				public Watchable watchable() {
+					return world;
+				}
+			});
+			assertTrue(helper.deletedFiles.contains(backup.resolve("icon.png")));
+			assertTrue(helper.writtenFiles.contains(backup.resolve("stats.json")));
+
+			/* Failed files must be tried again */
+			Files.delete(backup.resolve("stats.json"));
+			Files.createDirectories(backup.resolve("stats.json").resolve("blocked"));
+			watcher.pending.put(world.resolve("stats.json"), 0L);
+			assertThrows(IOException.class, watcher::convertPending);
+			assertTrue(watcher.pending.containsKey(world.resolve("stats.json")));
+		}
+
+		/* Stopping lets the watcher finish and back up the last changes */
+		helper.writtenFiles.clear();
+		FileUtils.deleteDirectory(backup.resolve("stats.json").toFile());
+		try (WorldWatcher watcher = new WorldWatcher(helper, world, backup)) {
+			watcher.debounce = 60000;
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			Future<Void> running = executor.submit(() -> {
+				watcher.run();
+				return null;
+			});
+			Thread.sleep(500);
+			watcher.stop();
+			running.get(1, TimeUnit.MINUTES);
+			executor.shutdown();
+			assertTrue(helper.writtenFiles.contains(backup.resolve("stats.json")));
+		}
+	}
+
+	@Test
+	public void testGitObjectDatabase() throws IOException {
+		Path world = Paths.get(URI.create(getClass().getResource("/testworld/").toString()));
+		Path backup = Files.createTempDirectory("mctext");
+		new BackupHelper(true, true, false, 1, false, false, true, false, false).backupWorld(world, backup);
+
+		try (Repository repository = FileRepositoryBuilder.create(Files.createTempDirectory("mctext").resolve(".git").toFile())) {
+			repository.create();
+			GitBackupHelper helper = new GitBackupHelper(new Converter(true, true), repository, "world/");
+			/* These would write to the real file system */
+			helper.splitRegions = true;
+			assertThrows(IllegalStateException.class, () -> helper.backupWorld(world));
+			helper.splitRegions = false;
+			helper.backupWorld(world);
+			ObjectId commit = helper.commit("backup", "Backup");
+			assertEquals(commit, repository.resolve("backup"));
+
+			int count = 0;
+			try (RevWalk revWalk = new RevWalk(repository); TreeWalk treeWalk = new TreeWalk(repository)) {
+				treeWalk.addTree(revWalk.parseCommit(commit).getTree());
+				treeWalk.setRecursive(true);
+				while (treeWalk.next()) {
+					assertArrayEquals(
+							Files.readAllBytes(backup.resolve(treeWalk.getPathString().substring("world/".length()))),
+							repository.open(treeWalk.getObjectId(0)).getBytes());
+					count++;
+				}
+			}
+			assertEquals(Files.walk(backup).filter(Files::isRegularFile).count(), count);
+		}
+	}
+
 	public static void foldersEqual(Path a, Path b) throws IOException {
 		Files.walk(a).forEach(p -> {
 			Path q = b.resolve(a.relativize(p));
@@ -1,23 +1,48 @@
 package de.piegames.mctext;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.Test;
 
+import com.flowpowered.nbt.CompoundMap;
 import com.flowpowered.nbt.CompoundTag;
+import com.flowpowered.nbt.DoubleTag;
+import com.flowpowered.nbt.FloatTag;
+import com.flowpowered.nbt.IntArrayTag;
+import com.flowpowered.nbt.IntTag;
+import com.flowpowered.nbt.ListTag;
+import com.flowpowered.nbt.LongArrayTag;
+import com.flowpowered.nbt.StringTag;
+import com.flowpowered.nbt.TagType;
 import com.flowpowered.nbt.stream.NBTInputStream;
 import com.flowpowered.nbt.stream.NBTOutputStream;
+import com.google.gson.stream.JsonWriter;
 
 public class ConverterTest {
 
@@ -49,6 +74,22 @@ public class ConverterTest {
 		in.close();
 	}
 
+	@Test
+	public void testWriteJson() throws Exception {
+		try (NBTInputStream in = new NBTInputStream(getClass().getResourceAsStream("/testworld/level.dat"))) {
+			CompoundTag tag = (CompoundTag) in.readTag();
+			StringWriter writer = new StringWriter();
+			converter1.writeJson(tag, writer);
+			assertEquals(converter1.gson.toJson(tag), writer.toString());
+		}
+		Converter pretty = new Converter(true, true);
+		RegionFile file = new RegionFile(Paths.get(getClass().getResource("/testworld/r0.mca").toURI()));
+		StringWriter writer = new StringWriter();
+		pretty.writeJson(file, writer);
+		assertEquals(pretty.gson.toJson(file), writer.toString());
+		assertEquals(pretty.writeNBT(file), pretty.readJson(new StringReader(writer.toString())));
+	}
+
 	@Test
 	public void testRegionSerialization1a() throws Exception {
 		testRegionSerialization(Paths.get(getClass().getResource("/testworld/r0.mca").toURI()), true);
@@ -99,6 +140,356 @@ public class ConverterTest {
 		testRegionSerialization(Paths.get(getClass().getResource("/testworld/r4.mca").toURI()), false);
 	}
 
+	@Test
+	public void testParallelChunks() throws Exception {
+		Converter parallel = new Converter(false, true, true);
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			RegionFile file = new RegionFile(Paths.get(getClass().getResource("/testworld/" + name).toURI()));
+			assertEquals(converter1.gson.toJson(file), parallel.gson.toJson(file));
+
+			Path tmp1 = Files.createTempFile("tmp", ".mca");
+			Path tmp2 = Files.createTempFile("tmp", ".mca");
+			converter1.readNBT(converter1.writeNBT(file)).write(tmp1);
+			parallel.readNBT(parallel.writeNBT(file)).write(tmp2);
+			assertRegionFileEquals(tmp1, tmp2);
+		}
+	}
+
+	@Test
+	public void testMappedRegionFile() throws Exception {
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			Path path = Paths.get(getClass().getResource("/testworld/" + name).toURI());
+			assertEquals(converter1.gson.toJson(new RegionFile(path)), converter1.gson.toJson(RegionFile.map(path)));
+
+			Path tmp = Files.createTempFile("tmp", ".mca");
+			RegionFile.map(path).write(tmp);
+			assertRegionFileEquals(path, tmp);
+		}
+	}
+
+	@Test
+	public void testChunkAccess() throws Exception {
+		Path path = Paths.get(getClass().getResource("/testworld/r0.mca").toURI());
+		RegionFile file = RegionFile.map(path);
+		CompoundTag region = converter1.writeNBT(new RegionFile(path));
+		int chunks = 0;
+		for (int z = 0; z < 32; z++)
+			for (int x = 0; x < 32; x++) {
+				int location = file.locations2.get(RegionFile.index(x, z));
+				CompoundTag chunk = (CompoundTag) region.getValue().get(Integer.toString(location >>> 8));
+				assertEquals(chunk != null, file.hasChunk(x, z));
+				if (chunk == null) {
+					assertEquals(null, file.getChunk(x, z));
+					continue;
+				}
+				chunks++;
+				assertEquals(chunk.getValue().get("timestamp").getValue(), file.getTimestamp(x, z));
+				assertEquals(chunk.getValue().get("compression").getValue(), file.getCompression(x, z));
+				assertEquals(((CompoundTag) chunk.getValue().get("chunk")).getValue(), file.getChunk(x, z).getValue());
+				assertEquals(file.getChunk(x, z), file.getChunk(x + 32, z - 32));
+			}
+		assertTrue(chunks > 0);
+	}
+
+	@Test
+	public void testIncrementalJson() throws Exception {
+		Converter pretty = new Converter(true, true);
+		RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/r0.mca").toURI()));
+		StringWriter first = new StringWriter();
+		ChunkIndex index = pretty.writeJson(file, first, null, null);
+		assertEquals(pretty.gson.toJson(file), first.toString());
+
+		/* Pretend that every second chunk changed, the text of the others must be copied to the right place */
+		for (int i = 0; i < 1024; i += 2)
+			index.timestamps[i]++;
+		StringWriter second = new StringWriter();
+		ChunkIndex index2 = pretty.writeJson(file, second, index, new StringReader(first.toString()));
+		assertEquals(first.toString(), second.toString());
+		assertArrayEquals(index.offsets, index2.offsets);
+	}
+
+	@Test
+	public void testTranscoder() throws Exception {
+		for (String name : new String[] { "/testworld/level.dat", "/mcedit_waypoints.dat" }) {
+			CompoundTag tag;
+			try (NBTInputStream in = new NBTInputStream(getClass().getResourceAsStream(name))) {
+				tag = (CompoundTag) in.readTag();
+			}
+			StringWriter writer = new StringWriter();
+			try (InputStream in = new GZIPInputStream(getClass().getResourceAsStream(name))) {
+				converter1.writeJson(in, writer);
+			}
+			assertEquals(converter1.gson.toJson(tag), writer.toString());
+		}
+
+		Converter parallel = new Converter(true, true, true);
+		Converter serial = new Converter(true, false, false);
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/" + name).toURI()));
+			for (Converter converter : new Converter[] { parallel, serial, new Converter(false, true, true) }) {
+				StringWriter writer = new StringWriter();
+				converter.writeJson(file, writer);
+				assertEquals(converter.gson.toJson(converter.writeNBT(file)), writer.toString());
+			}
+		}
+	}
+
+	@Test
+	public void testJsonTranscoder() throws Exception {
+		for (String name : new String[] { "/testworld/level.dat", "/mcedit_waypoints.dat" }) {
+			String json;
+			try (NBTInputStream in = new NBTInputStream(getClass().getResourceAsStream(name))) {
+				json = converter1.gson.toJson(in.readTag());
+			}
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			try (NBTOutputStream out = new NBTOutputStream(expected, NBTInputStream.NO_COMPRESSION)) {
+				out.writeTag(converter1.readJson(new StringReader(json)));
+			}
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			converter1.readJson(new StringReader(json), actual);
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		}
+
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/" + name).toURI()));
+			for (Converter converter : new Converter[] { converter1, converter2, new Converter(false, true, true) }) {
+				String json = converter.gson.toJson(file);
+				Path tmp1 = Files.createTempFile("tmp", ".mca");
+				Path tmp2 = Files.createTempFile("tmp", ".mca");
+				converter.readNBT(converter.readJson(new StringReader(json))).write(tmp1);
+				converter.readRegion(new StringReader(json)).write(tmp2);
+				assertRegionFileEquals(tmp1, tmp2);
+			}
+		}
+	}
+
+	@Test
+	public void testJsonTranscoderStreaming() throws Exception {
+		CompoundMap map = new CompoundMap();
+		for (int i = 0; i < 20000; i++)
+			map.put(new IntTag("i" + i, i));
+		List<StringTag> strings = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			strings.add(new StringTag("", "s" + i));
+		map.put(new ListTag<>("list", StringTag.class, strings));
+		CompoundTag tag = new CompoundTag("", map);
+		String json = converter1.gson.toJson(tag);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (NBTOutputStream out = new NBTOutputStream(expected, NBTInputStream.NO_COMPRESSION)) {
+			out.writeTag(tag);
+		}
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		JsonTranscoder transcoder = new JsonTranscoder(converter1.gson.newJsonReader(new StringReader(json)), actual);
+		transcoder.transcodeCompound();
+		transcoder.writeTo(actual);
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		/* Only lists need to be buffered, so the buffer must not have grown */
+		assertEquals(8192, transcoder.data.length);
+
+		assertThrows(IllegalArgumentException.class, () -> Compression.decompress(new ByteArrayInputStream(new byte[0]), 3));
+		assertThrows(IllegalArgumentException.class, () -> Compression.compress(new ByteArrayOutputStream(), 4, -1));
+	}
+
+	@Test
+	public void testNaN() throws Exception {
+		CompoundMap map = new CompoundMap();
+		map.put(new DoubleTag("nan", Double.NaN));
+		map.put(new DoubleTag("infinity", Double.NEGATIVE_INFINITY));
+		map.put(new FloatTag("float", Float.NaN));
+		CompoundTag tag = new CompoundTag("", map);
+		ByteArrayOutputStream nbt = new ByteArrayOutputStream();
+		try (NBTOutputStream out = new NBTOutputStream(nbt, NBTInputStream.NO_COMPRESSION)) {
+			out.writeTag(tag);
+		}
+		StringWriter json = new StringWriter();
+		converter1.writeJson(new ByteArrayInputStream(nbt.toByteArray()), json);
+		assertEquals(converter1.gson.toJson(tag), json.toString());
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		converter1.readJson(new StringReader(json.toString()), restored);
+		assertArrayEquals(nbt.toByteArray(), restored.toByteArray());
+	}
+
+	@Test
+	public void testHexArrays() throws Exception {
+		Converter hex = new Converter(true, true, false, -1, true);
+		CompoundMap map = new CompoundMap();
+		map.put(new IntArrayTag("ints", new int[] { 0, -1, 123456, Integer.MIN_VALUE }));
+		map.put(new LongArrayTag("longs", new long[] { 0, -1, Long.MIN_VALUE, 0x0123456789abcdefL }));
+		CompoundTag tag = new CompoundTag("", map);
+		ByteArrayOutputStream nbt = new ByteArrayOutputStream();
+		try (NBTOutputStream out = new NBTOutputStream(nbt, NBTInputStream.NO_COMPRESSION)) {
+			out.writeTag(tag);
+		}
+
+		String json = hex.gson.toJson(tag);
+		assertTrue(json.contains("\"ffffffffffffffff\""));
+		assertTrue(json.contains("\"80000000\""));
+		StringWriter writer = new StringWriter();
+		hex.writeJson(new ByteArrayInputStream(nbt.toByteArray()), writer);
+		assertEquals(json, writer.toString());
+		assertEquals(tag, converter1.readJson(new StringReader(json)));
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		converter1.readJson(new StringReader(json), restored);
+		assertArrayEquals(nbt.toByteArray(), restored.toByteArray());
+
+		for (String name : new String[] { "r0.mca", "r2.mca", "r4.mca" }) {
+			RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/" + name).toURI()));
+			writer = new StringWriter();
+			hex.writeJson(file, writer);
+			assertEquals(hex.gson.toJson(hex.writeNBT(file)), writer.toString());
+			Path tmp1 = Files.createTempFile("tmp", ".mca");
+			Path tmp2 = Files.createTempFile("tmp", ".mca");
+			converter1.readRegion(new StringReader(converter1.gson.toJson(file))).write(tmp1);
+			converter1.readRegion(new StringReader(writer.toString())).write(tmp2);
+			assertRegionFileEquals(tmp1, tmp2);
+		}
+	}
+
+	@Test
+	public void testCompressionLevel() throws Exception {
+		RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/r0.mca").toURI()));
+		String json = converter2.gson.toJson(file);
+		long[] sizes = new long[2];
+		int[] levels = { 1, 9 };
+		for (int l = 0; l < levels.length; l++) {
+			Converter converter = new Converter(false, false, true, levels[l]);
+			RegionFile restored = converter.readRegion(new StringReader(json));
+			for (int i = 0; i < 1024; i++)
+				if (file.hasChunk(i & 31, i >> 5)) {
+					assertEquals(file.getChunk(i & 31, i >> 5).getValue(), restored.getChunk(i & 31, i >> 5).getValue());
+					sizes[l] += restored.getChunkData(i & 31, i >> 5).remaining();
+				}
+		}
+		assertTrue(sizes[1] < sizes[0]);
+		assertThrows(IllegalArgumentException.class, () -> new Converter(false, false, false, 10));
+	}
+
+	@Test
+	public void testGrownChunks() throws Exception {
+		RegionFile file = RegionFile.map(Paths.get(getClass().getResource("/testworld/r0.mca").toURI()));
+		String json = new Converter(false, true).gson.toJson(file);
+		/* Uncompressed chunks don't fit into their old sectors anymore */
+		RegionFile restored = new Converter(false, true, false, 0).readRegion(new StringReader(json));
+		Path out = Files.createTempFile("mctext", ".mca");
+		restored.write(out);
+		RegionFile written = RegionFile.map(out);
+		BitSet used = new BitSet();
+		for (int i = 0; i < 1024; i++) {
+			assertEquals(file.hasChunk(i & 31, i >> 5), written.hasChunk(i & 31, i >> 5));
+			if (file.hasChunk(i & 31, i >> 5)) {
+				assertEquals(file.getChunk(i & 31, i >> 5).getValue(), written.getChunk(i & 31, i >> 5).getValue());
+				assertEquals(file.getTimestamp(i & 31, i >> 5), written.getTimestamp(i & 31, i >> 5));
+				int location = written.locations2.get(i);
+				assertTrue((location >>> 8) >= 2);
+				assertTrue(used.get(location >>> 8, (location >>> 8) + (location & 0xFF)).isEmpty());
+				used.set(location >>> 8, (location >>> 8) + (location & 0xFF));
+			}
+		}
+	}
+
+	@Test
+	public void testKeyCodec() {
+		for (TagType type : TagType.values()) {
+			String key = String.format("%02x", type.getId()) + "BlockStates";
+			assertEquals(key, KeyCodec.encode("BlockStates", type));
+			assertEquals(type, KeyCodec.decode(key));
+			assertEquals(type, KeyCodec.decode(key.toUpperCase()));
+			assertEquals(String.format("%02x", type.getId()), KeyCodec.encode("", type));
+		}
+		assertSame(KeyCodec.name("0aLevel"), KeyCodec.name(new String("0aLevel")));
+		/* One-off names must not keep new names out of the cache */
+		for (int i = 0; i < KeyCodec.CACHE_SIZE * 4; i++) {
+			KeyCodec.name("0a" + i);
+			KeyCodec.encode(Integer.toString(i), TagType.TAG_COMPOUND);
+		}
+		assertSame(KeyCodec.name("0aSections"), KeyCodec.name(new String("0aSections")));
+		assertSame(KeyCodec.encode("Sections", TagType.TAG_LIST), KeyCodec.encode(new String("Sections"), TagType.TAG_LIST));
+		assertEquals("", KeyCodec.name("0a"));
+		assertThrows(NumberFormatException.class, () -> KeyCodec.decode("x1Level"));
+	}
+
+	@Test
+	public void testArrayCodec() throws Exception {
+		Random random = new Random(42);
+		for (int length = 0; length < 20; length++) {
+			byte[] bytes = new byte[length * 8];
+			random.nextBytes(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			short[] shorts = new short[length * 4];
+			buffer.asShortBuffer().get(shorts);
+			int[] ints = new int[length * 2];
+			buffer.asIntBuffer().get(ints);
+			long[] longs = new long[length];
+			buffer.asLongBuffer().get(longs);
+
+			for (int i = 0; i < 8; i++) {
+				byte[] part = Arrays.copyOf(bytes, Math.max(0, bytes.length - i));
+				String expected = Base64.getEncoder().encodeToString(part);
+				assertEquals("[\"" + expected + "\"]", encode(out -> ArrayCodec.write(out, part)));
+				assertArrayEquals(part, ArrayCodec.readBytes(expected));
+			}
+			String expected = Base64.getEncoder().encodeToString(bytes);
+			assertEquals("[\"" + expected + "\"]", encode(out -> ArrayCodec.write(out, shorts)));
+			assertEquals("[\"" + expected + "\"]", encode(out -> ArrayCodec.write(out, ints)));
+			assertEquals("[\"" + expected + "\"]", encode(out -> ArrayCodec.write(out, longs)));
+			assertArrayEquals(shorts, ArrayCodec.readShorts(expected));
+			assertArrayEquals(ints, ArrayCodec.readInts(expected));
+			assertArrayEquals(longs, ArrayCodec.readLongs(expected));
+			assertArrayEquals(longs, ArrayCodec.readLongs(expected.replace("=", "")));
+		}
+		/* Larger than the scratch buffers that are kept */
+		long[] longs = random.longs(ArrayCodec.SCRATCH_LIMIT / 4).toArray();
+		ByteBuffer buffer = ByteBuffer.allocate(longs.length * 8);
+		buffer.asLongBuffer().put(longs);
+		String expected = Base64.getEncoder().encodeToString(buffer.array());
+		assertEquals("[\"" + expected + "\"]", encode(out -> ArrayCodec.write(out, longs)));
+		assertArrayEquals(longs, ArrayCodec.readLongs(expected));
+	}
+
+	/** {@link ArrayCodec.StreamingJsonWriter} writes around gson, so make sure it still produces the same output as a plain json writer */
+	@Test
+	public void testStreamingJsonWriter() throws Exception {
+		for (String indent : new String[] { "", "\t" }) {
+			StringWriter expected = new StringWriter(), actual = new StringWriter();
+			JsonWriter plain = new JsonWriter(expected);
+			JsonWriter streaming = new ArrayCodec.StreamingJsonWriter(actual);
+			for (JsonWriter out : new JsonWriter[] { plain, streaming }) {
+				out.setIndent(indent);
+				out.beginObject();
+				out.name("bytes");
+				ArrayCodec.write(out, new byte[] { 1, 2, 3 });
+				out.name("ints");
+				ArrayCodec.write(out, new int[] { 1, -1 });
+				out.name("nested").beginArray();
+				ArrayCodec.write(out, new short[] { 1 });
+				ArrayCodec.write(out, new byte[0]);
+				ArrayCodec.writeHex(out, new long[] { 1, -1 });
+				out.value(1);
+				out.endArray();
+				out.name("value").value("text");
+				out.endObject();
+				out.flush();
+			}
+			assertEquals(expected.toString(), actual.toString());
+		}
+	}
+
+	private String encode(ArrayAction action) throws IOException {
+		StringWriter writer = new StringWriter();
+		JsonWriter out = converter1.newJsonWriter(writer);
+		out.beginArray();
+		action.write(out);
+		out.endArray();
+		out.flush();
+		return writer.toString();
+	}
+
+	@FunctionalInterface
+	private static interface ArrayAction {
+		void write(JsonWriter out) throws IOException;
+	}
+
 	private void testRegionSerialization(Path expected, boolean keepUnused) throws Exception {
 		Converter converter = (keepUnused ? converter1 : converter2);
 		RegionFile file = new RegionFile(expected);